@@ -0,0 +1,55 @@
+/*
+MIT License
+
+Copyright (c) 2019 Aberta Ltd.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package aberta.sql.processor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The SQL for a method of a query interface. For an interface
+ * {@code CustomerQueries}, the {@link QueryProcessor} generates the class
+ * {@code CustomerQueriesImpl}, which runs the SQL with the method's parameters
+ * for the "?" placeholders, in order.
+ * <p>
+ * The method returns either a {@code List} of rows, or a single row, which is
+ * null if there are no rows. A row is a String, number, boolean or date read
+ * from the first column, or an object of a class with a constructor without
+ * parameters and a setter for each column, or with a constructor that takes
+ * the columns in order.
+ *
+ * @author Chris Hopkins, Aberta Ltd.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Query {
+
+    /**
+     * @return the SQL SELECT query
+     */
+    String value();
+}
@@ -0,0 +1,833 @@
+/*
+MIT License
+
+Copyright (c) 2019 Aberta Ltd.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package aberta.sql.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an implementation of each interface with {@link Query} methods.
+ * The generated code reads the columns by position without reflection, and
+ * runs the SQL with {@code SimpleSQL}, so the connection handling, pooling,
+ * parameter binding and {@code QueryOptions} are the same as for any other
+ * query. A parameter that is null is passed with the SQL type of its declared
+ * type, so that it is bound with setNull and that type even on the first
+ * call; other values are bound with the setter for their class.
+ * <p>
+ * The number of "?" placeholders in the SQL and the type returned by each
+ * method are checked when the interface is compiled.
+ *
+ * @author Chris Hopkins, Aberta Ltd.
+ */
+@SupportedAnnotationTypes("aberta.sql.processor.Query")
+public final class QueryProcessor extends AbstractProcessor {
+
+    private static final String SIMPLESQL = "aberta.sql.SimpleSQL";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment round) {
+
+        Set<TypeElement> interfaces = new LinkedHashSet<>();
+        for (Element e : round.getElementsAnnotatedWith(Query.class)) {
+            Element owner = e.getEnclosingElement();
+            if (owner.getKind() != ElementKind.INTERFACE) {
+                error(e, "@Query methods must be declared in an interface");
+                continue;
+            }
+            interfaces.add((TypeElement) owner);
+        }
+
+        for (TypeElement type : interfaces) {
+            try {
+                Generator generator = new Generator(type);
+                if (generator.plan()) {
+                    generator.write();
+                }
+            } catch (IOException ex) {
+                error(type, "Failed to write the implementation of "
+                            + type.getQualifiedName() + ": " + ex);
+            }
+        }
+        return true;
+    }
+
+    private void error(Element e, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                                 message, e);
+    }
+
+    /**
+     * Counts the "?" placeholders in the SQL, ignoring any in quoted strings,
+     * quoted names and comments.
+     */
+    static int countPlaceholders(String sql) {
+        int count = 0;
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char ch = sql.charAt(i);
+            if (ch == '\'' || ch == '"') {
+                int end = sql.indexOf(ch, i + 1);
+                i = (end < 0) ? n : end + 1;
+            } else if (ch == '-' && sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = (end < 0) ? n : end + 1;
+            } else if (ch == '/' && sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                i = (end < 0) ? n : end + 2;
+            } else {
+                if (ch == '?') {
+                    count++;
+                }
+                i++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A method of the interface, and how to make its rows
+     */
+    private static final class QueryMethod {
+
+        ExecutableElement method;
+        ExecutableType type;
+        String sql;
+        boolean list;
+        TypeMirror row;
+        boolean primitive;
+        RowShape shape;
+        TypeElement rowClass;
+        ExecutableElement constructor;
+        List<Element> properties = new ArrayList<>();
+    }
+
+    private enum RowShape {
+        /**
+         * a single value read from the first column
+         */
+        VALUE,
+        /**
+         * an object with setters or fields named after the columns
+         */
+        PROPERTIES,
+        /**
+         * an object made with a constructor that takes the columns in order
+         */
+        CONSTRUCTOR
+    }
+
+    /**
+     * Checks the methods of an interface and writes its implementation
+     */
+    private final class Generator {
+
+        private final TypeElement type;
+        private final Elements elements = processingEnv.getElementUtils();
+        private final Types types = processingEnv.getTypeUtils();
+        private final List<QueryMethod> methods = new ArrayList<>();
+        private final String packageName;
+        private final String className;
+        private StringBuilder out;
+
+        Generator(TypeElement type) {
+            this.type = type;
+            PackageElement pkg = elements.getPackageOf(type);
+            packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().
+                    toString();
+            String name = type.getSimpleName().toString();
+            for (Element e = type.getEnclosingElement();
+                 e instanceof TypeElement; e = e.getEnclosingElement()) {
+                name = e.getSimpleName() + "_" + name;
+            }
+            className = name + "Impl";
+        }
+
+        /**
+         * @return true if every method can be implemented
+         */
+        boolean plan() {
+            boolean ok = true;
+            if (!type.getTypeParameters().isEmpty()) {
+                error(type, "Query interfaces cannot have type parameters");
+                ok = false;
+            }
+            if (type.getModifiers().contains(Modifier.PRIVATE)) {
+                error(type, "Query interfaces cannot be private");
+                ok = false;
+            }
+
+            DeclaredType declared = (DeclaredType) type.asType();
+            for (ExecutableElement m : ElementFilter.methodsIn(elements.
+                    getAllMembers(type))) {
+                if (!m.getModifiers().contains(Modifier.ABSTRACT)) {
+                    continue;
+                }
+                Query query = m.getAnnotation(Query.class);
+                if (query == null) {
+                    error(m, "Method " + m.getSimpleName() + " of "
+                             + type.getSimpleName() + " has no @Query");
+                    ok = false;
+                    continue;
+                }
+                QueryMethod qm = new QueryMethod();
+                qm.method = m;
+                qm.type = (ExecutableType) types.asMemberOf(declared, m);
+                qm.sql = query.value();
+                ok &= plan(qm);
+                methods.add(qm);
+            }
+            return ok;
+        }
+
+        private boolean plan(QueryMethod qm) {
+            ExecutableElement m = qm.method;
+            if (!m.getTypeParameters().isEmpty()) {
+                error(m, "@Query methods cannot have type parameters");
+                return false;
+            }
+
+            int placeholders = countPlaceholders(qm.sql);
+            int params = m.getParameters().size();
+            if (placeholders != params) {
+                error(m, "The SQL has " + placeholders + " placeholder"
+                         + (placeholders == 1 ? "" : "s") + " but "
+                         + m.getSimpleName() + " has " + params
+                         + " parameter" + (params == 1 ? "" : "s"));
+                return false;
+            }
+
+            TypeMirror result = qm.type.getReturnType();
+            if (result.getKind() == TypeKind.VOID) {
+                error(m, "@Query methods must return a row or a List of rows");
+                return false;
+            }
+            TypeMirror list = types.erasure(elements.getTypeElement(
+                    "java.util.List").asType());
+            if (types.isSameType(types.erasure(result), list)) {
+                List<? extends TypeMirror> args = ((DeclaredType) result).
+                        getTypeArguments();
+                if (args.size() != 1 || args.get(0).getKind()
+                                        != TypeKind.DECLARED) {
+                    error(m, "The List returned by " + m.getSimpleName()
+                             + " must have the type of its rows, e.g. "
+                             + "List<String>");
+                    return false;
+                }
+                qm.list = true;
+                qm.row = args.get(0);
+            } else if (result.getKind().isPrimitive()) {
+                qm.primitive = true;
+                qm.row = types.boxedClass((PrimitiveType) result).asType();
+            } else {
+                qm.row = result;
+            }
+
+            if (reader(qm.row) != null) {
+                qm.shape = RowShape.VALUE;
+                return true;
+            }
+            return planClass(qm);
+        }
+
+        /**
+         * Decides how to make an object of the row class: through its
+         * setters and fields if it has a constructor without parameters, or
+         * else through its only constructor
+         */
+        private boolean planClass(QueryMethod qm) {
+            ExecutableElement m = qm.method;
+            Element e = types.asElement(qm.row);
+            // records are classes too, but ElementKind.RECORD is not in Java 8
+            if (qm.row.getKind() != TypeKind.DECLARED
+                || e.getKind() != ElementKind.CLASS
+                   && !e.getKind().name().equals("RECORD")) {
+                error(m, "Cannot make a row of type " + qm.row);
+                return false;
+            }
+            TypeElement c = (TypeElement) e;
+            if (c.getModifiers().contains(Modifier.ABSTRACT)) {
+                error(m, "Cannot make a row of abstract class " + qm.row);
+                return false;
+            }
+            if (c.getNestingKind() == NestingKind.MEMBER && !c.getModifiers().
+                    contains(Modifier.STATIC)) {
+                error(m, "Cannot make a row of inner class " + qm.row
+                         + ": make it static");
+                return false;
+            }
+            qm.rowClass = c;
+
+            List<ExecutableElement> constructors = new ArrayList<>();
+            for (ExecutableElement k : ElementFilter.constructorsIn(c.
+                    getEnclosedElements())) {
+                if (accessible(k)) {
+                    if (k.getParameters().isEmpty()) {
+                        qm.shape = RowShape.PROPERTIES;
+                    } else {
+                        constructors.add(k);
+                    }
+                }
+            }
+
+            if (qm.shape == RowShape.PROPERTIES) {
+                for (Element member : elements.getAllMembers(c)) {
+                    if (isSetter(member) || isField(member)) {
+                        qm.properties.add(member);
+                    }
+                }
+                if (qm.properties.isEmpty()) {
+                    error(m, qm.row + " has no setters or fields to set");
+                    return false;
+                }
+                return true;
+            }
+
+            if (constructors.size() != 1) {
+                error(m, qm.row + " must have a constructor without parameters"
+                         + " or only one constructor");
+                return false;
+            }
+            qm.shape = RowShape.CONSTRUCTOR;
+            qm.constructor = constructors.get(0);
+            return true;
+        }
+
+        private boolean accessible(Element e) {
+            Set<Modifier> modifiers = e.getModifiers();
+            if (modifiers.contains(Modifier.PUBLIC)) {
+                return true;
+            }
+            return !modifiers.contains(Modifier.PRIVATE) && elements.
+                    getPackageOf(e).equals(elements.getPackageOf(type));
+        }
+
+        private boolean isSetter(Element e) {
+            if (e.getKind() != ElementKind.METHOD || e.getModifiers().contains(
+                    Modifier.STATIC) || !accessible(e)) {
+                return false;
+            }
+            String name = e.getSimpleName().toString();
+            return name.length() > 3 && name.startsWith("set")
+                   && ((ExecutableElement) e).getParameters().size() == 1;
+        }
+
+        private boolean isField(Element e) {
+            Set<Modifier> modifiers = e.getModifiers();
+            return e.getKind() == ElementKind.FIELD && accessible(e)
+                   && !modifiers.contains(Modifier.STATIC) && !modifiers.
+                    contains(Modifier.FINAL);
+        }
+
+        /**
+         * @return the property's name in lower case without underscores, to
+         * match the column names
+         */
+        private String propertyKey(Element property) {
+            String name = property.getSimpleName().toString();
+            if (property.getKind() == ElementKind.METHOD) {
+                name = name.substring(3);
+            }
+            return name.replace("_", "").toLowerCase(Locale.ROOT);
+        }
+
+        private TypeMirror propertyType(TypeElement owner, Element property) {
+            TypeMirror t = types.asMemberOf((DeclaredType) owner.asType(),
+                                            property);
+            if (property.getKind() == ElementKind.METHOD) {
+                return ((ExecutableType) t).getParameterTypes().get(0);
+            }
+            return t;
+        }
+
+        /**
+         * @return the RowCursor method that reads a value of the given type,
+         * or null if the type is not a single value
+         */
+        private String reader(TypeMirror t) {
+            switch (t.getKind()) {
+                case BOOLEAN:
+                    return "getBoolean";
+                case BYTE:
+                case SHORT:
+                case INT:
+                    return "getInt";
+                case LONG:
+                    return "getLong";
+                case FLOAT:
+                case DOUBLE:
+                    return "getDouble";
+                case ARRAY:
+                    return "getObject";
+                case DECLARED:
+                    break;
+                default:
+                    return null;
+            }
+            try {
+                return reader(types.unboxedType(t));
+            } catch (IllegalArgumentException ex) {
+                // not a boxed primitive
+            }
+            Element e = types.asElement(t);
+            if (e.getKind() == ElementKind.ENUM) {
+                return "getString";
+            }
+            switch (((TypeElement) e).getQualifiedName().toString()) {
+                case "java.lang.String":
+                    return "getString";
+                case "java.math.BigDecimal":
+                case "java.math.BigInteger":
+                    return "getBigDecimal";
+                case "java.sql.Timestamp":
+                case "java.sql.Date":
+                case "java.util.Date":
+                    return "getTimestamp";
+                case "java.lang.Object":
+                case "java.lang.Number":
+                    return "getObject";
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Writes the statements that declare a variable and read its value
+         * from a column. Values that are null in the database are null,
+         * except for primitives, which are 0 or false
+         */
+        private void read(String indent, String var, TypeMirror t,
+                          String column) {
+            String raw = var + "Raw";
+            String reader = reader(t);
+            if (reader == null) {
+                line(indent, name(t) + " " + var + " = (" + name(t)
+                             + ") cursor.getObject(" + column + ");");
+                return;
+            }
+            if (t.getKind().isPrimitive()) {
+                line(indent, name(t) + " " + var + " = " + cast(t) + "cursor."
+                             + reader + "(" + column + ");");
+                return;
+            }
+            TypeMirror unboxed = null;
+            try {
+                unboxed = types.unboxedType(t);
+            } catch (IllegalArgumentException ex) {
+                // not a boxed primitive
+            }
+            if (unboxed != null) {
+                line(indent, name(unboxed) + " " + raw + " = " + cast(unboxed)
+                             + "cursor." + reader + "(" + column + ");");
+                line(indent, name(t) + " " + var + " = cursor.wasNull() ? null : "
+                             + name(t) + ".valueOf(" + raw + ");");
+                return;
+            }
+
+            String qualified = ((TypeElement) types.asElement(t)).
+                    getQualifiedName().toString();
+            if (types.asElement(t).getKind() == ElementKind.ENUM) {
+                line(indent, "String " + raw + " = cursor.getString(" + column
+                             + ");");
+                line(indent, name(t) + " " + var + " = (" + raw
+                             + " == null) ? null : " + name(t) + ".valueOf("
+                             + raw + ");");
+            } else if (qualified.equals("java.math.BigInteger")) {
+                line(indent, "java.math.BigDecimal " + raw
+                             + " = cursor.getBigDecimal(" + column + ");");
+                line(indent, name(t) + " " + var + " = (" + raw
+                             + " == null) ? null : " + raw + ".toBigInteger();");
+            } else if (qualified.equals("java.sql.Date")) {
+                line(indent, "java.sql.Timestamp " + raw
+                             + " = cursor.getTimestamp(" + column + ");");
+                line(indent, name(t) + " " + var + " = (" + raw
+                             + " == null) ? null : new java.sql.Date(" + raw
+                             + ".getTime());");
+            } else {
+                line(indent, name(t) + " " + var + " = cursor." + reader + "("
+                             + column + ");");
+            }
+        }
+
+        private String cast(TypeMirror t) {
+            switch (t.getKind()) {
+                case BYTE:
+                case SHORT:
+                case FLOAT:
+                    return "(" + t + ") ";
+                default:
+                    return "";
+            }
+        }
+
+        private String name(TypeMirror t) {
+            return types.erasure(t).toString();
+        }
+
+        private void line(String indent, String text) {
+            out.append(indent).append(text).append('\n');
+        }
+
+        void write() throws IOException {
+            out = new StringBuilder();
+            String iface = type.getQualifiedName().toString();
+            if (!packageName.isEmpty()) {
+                line("", "package " + packageName + ";");
+                line("", "");
+            }
+            line("", "/**");
+            line("", " * Runs the queries of {@link " + iface + "}.");
+            line("", " * Generated by " + QueryProcessor.class.getName()
+                     + ": do not edit.");
+            line("", " */");
+            line("", "@SuppressWarnings(\"unchecked\")");
+            line("", "public final class " + className + " implements " + iface
+                     + " {");
+            line("", "");
+            line("    ", "private final " + SIMPLESQL
+                           + ".ConnectionParameters connectionParams;");
+            line("    ", "private final " + SIMPLESQL
+                           + ".QueryOptions options;");
+            line("", "");
+            line("    ", "public " + className + "(" + SIMPLESQL
+                           + ".ConnectionParameters connectionParams) {");
+            line("        ", "this(connectionParams, null);");
+            line("    ", "}");
+            line("", "");
+            line("    ", "public " + className + "(" + SIMPLESQL
+                           + ".ConnectionParameters connectionParams,");
+            line("            ", SIMPLESQL + ".QueryOptions options) {");
+            line("        ", "this.connectionParams = connectionParams;");
+            line("        ", "this.options = options;");
+            line("    ", "}");
+
+            for (int i = 0; i < methods.size(); i++) {
+                writeMethod(i, methods.get(i));
+            }
+            for (int i = 0; i < methods.size(); i++) {
+                writeMapper(i, methods.get(i));
+            }
+            line("", "}");
+
+            String qualified = packageName.isEmpty() ? className
+                               : packageName + "." + className;
+            try (Writer w = processingEnv.getFiler().createSourceFile(
+                    qualified, type).openWriter()) {
+                w.write(out.toString());
+            }
+        }
+
+        private void writeMethod(int index, QueryMethod qm) {
+            ExecutableElement m = qm.method;
+            List<? extends VariableElement> params = m.getParameters();
+            List<? extends TypeMirror> paramTypes = qm.type.getParameterTypes();
+
+            StringBuilder signature = new StringBuilder();
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < params.size(); i++) {
+                if (i > 0) {
+                    signature.append(", ");
+                    args.append(", ");
+                }
+                String param = params.get(i).getSimpleName().toString();
+                signature.append("final ").append(paramTypes.get(i)).
+                        append(' ').append(param);
+                args.append(argument(param, paramTypes.get(i)));
+            }
+            StringBuilder throwsClause = new StringBuilder();
+            for (TypeMirror thrown : qm.type.getThrownTypes()) {
+                throwsClause.append(throwsClause.length() == 0 ? " throws "
+                                    : ", ").append(thrown);
+            }
+
+            String sql = "SQL_" + index;
+            String list;
+            if (params.isEmpty()) {
+                list = "java.util.Collections.<Object>emptyList()";
+            } else if (params.size() == 1) {
+                list = "java.util.Collections.<Object>singletonList(" + args
+                       + ")";
+            } else {
+                list = "java.util.Arrays.<Object>asList(" + args + ")";
+            }
+
+            line("", "");
+            line("    ", "private static final String " + sql + " = "
+                           + elements.getConstantExpression(qm.sql) + ";");
+            line("", "");
+            line("    ", "@Override");
+            line("    ", "public " + qm.type.getReturnType() + " "
+                           + m.getSimpleName() + "(" + signature + ")"
+                           + throwsClause + " {");
+            String call = SIMPLESQL + (qm.list ? ".queryAsList" : ".queryFirst")
+                          + "(this.connectionParams, " + sql + ", " + list
+                          + ", this.options, new Mapper" + index + "())";
+            if (qm.primitive) {
+                // the parameters are in scope, so use a name they cannot have
+                line("        ", qm.row + " row$ = " + call + ";");
+                line("        ", "if (row$ == null) {");
+                line("            ", "throw new RuntimeException(\"No row found: \" + "
+                                     + sql + ");");
+                line("        ", "}");
+                line("        ", "return row$;");
+            } else {
+                line("        ", "return " + call + ";");
+            }
+            line("    ", "}");
+        }
+
+        /**
+         * @return the expression that passes the parameter to SimpleSQL: a
+         * null of a type with a known SQL type is passed with that type, and
+         * an enum is passed as its name
+         */
+        private String argument(String param, TypeMirror t) {
+            if (t.getKind() != TypeKind.DECLARED && t.getKind()
+                                                    != TypeKind.ARRAY) {
+                return param;
+            }
+            String sqlType = sqlType(t);
+            if (sqlType == null) {
+                return param;
+            }
+            boolean isEnum = t.getKind() == TypeKind.DECLARED && types.
+                    asElement(t).getKind() == ElementKind.ENUM;
+            return "(" + param + " == null ? " + SIMPLESQL + ".param(null, "
+                   + sqlType + ") : (Object) " + param
+                   + (isEnum ? ".name()" : "") + ")";
+        }
+
+        /**
+         * @return the java.sql.Types constant for a parameter of the type,
+         * the same as SimpleSQL uses for a value of that class, or null if
+         * the type is left to the driver
+         */
+        private String sqlType(TypeMirror t) {
+            String type;
+            if (t.getKind() == TypeKind.ARRAY) {
+                TypeKind component = ((ArrayType) t).getComponentType().
+                        getKind();
+                type = (component == TypeKind.BYTE) ? "VARBINARY" : null;
+            } else if (types.asElement(t).getKind() == ElementKind.ENUM) {
+                type = "VARCHAR";
+            } else {
+                switch (((TypeElement) types.asElement(t)).getQualifiedName().
+                        toString()) {
+                    case "java.lang.String":
+                        type = "VARCHAR";
+                        break;
+                    case "java.lang.Long":
+                        type = "BIGINT";
+                        break;
+                    case "java.lang.Integer":
+                    case "java.lang.Short":
+                    case "java.lang.Byte":
+                        type = "INTEGER";
+                        break;
+                    case "java.lang.Double":
+                    case "java.lang.Float":
+                        type = "DOUBLE";
+                        break;
+                    case "java.math.BigDecimal":
+                        type = "DECIMAL";
+                        break;
+                    case "java.lang.Boolean":
+                        // as SimpleSQL binds Boolean values
+                        type = "BIT";
+                        break;
+                    case "java.sql.Timestamp":
+                    case "java.util.Date":
+                        type = "TIMESTAMP";
+                        break;
+                    case "java.sql.Date":
+                        type = "DATE";
+                        break;
+                    default:
+                        type = null;
+                        break;
+                }
+            }
+            return (type != null) ? "java.sql.Types." + type : null;
+        }
+
+        private void writeMapper(int index, QueryMethod qm) {
+            String row = qm.row.toString();
+            line("", "");
+            line("    ", "private static final class Mapper" + index
+                           + " implements " + SIMPLESQL + ".RowMapper<" + row
+                           + "> {");
+            if (qm.shape == RowShape.PROPERTIES) {
+                line("", "");
+                line("        ", "private int[] properties = null;");
+            } else if (qm.shape == RowShape.CONSTRUCTOR) {
+                line("", "");
+                line("        ", "private boolean checked = false;");
+            }
+            line("", "");
+            line("        ", "@Override");
+            line("        ", "public " + row + " map(" + SIMPLESQL
+                               + ".RowCursor cursor) {");
+            switch (qm.shape) {
+                case VALUE:
+                    read("            ", "value", qm.row, "1");
+                    line("            ", "return value;");
+                    break;
+                case CONSTRUCTOR:
+                    writeConstructor(qm);
+                    break;
+                default:
+                    writeProperties(qm);
+                    break;
+            }
+            line("        ", "}");
+            if (qm.shape == RowShape.PROPERTIES) {
+                writePropertyIndex(qm);
+            }
+            line("    ", "}");
+        }
+
+        private void writeConstructor(QueryMethod qm) {
+            ExecutableType k = (ExecutableType) types.asMemberOf(
+                    (DeclaredType) qm.rowClass.asType(), qm.constructor);
+            List<? extends TypeMirror> params = k.getParameterTypes();
+            line("            ", "if (!checked) {");
+            line("                ", "if (cursor.getColumnCount() != "
+                                     + params.size() + ") {");
+            line("                    ", "throw new RuntimeException(\""
+                                         + name(qm.row) + " needs "
+                                         + params.size()
+                                         + " columns but the query returned \" + "
+                                         + "cursor.getColumnCount());");
+            line("                ", "}");
+            line("                ", "checked = true;");
+            line("            ", "}");
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < params.size(); i++) {
+                read("            ", "c" + (i + 1), params.get(i), String.
+                     valueOf(i + 1));
+                args.append(i == 0 ? "" : ", ").append("c").append(i + 1);
+            }
+            line("            ", "return new " + qm.row + "(" + args + ");");
+        }
+
+        private void writeProperties(QueryMethod qm) {
+            line("            ", "if (properties == null) {");
+            line("                ", "properties = new int[cursor.getColumnCount()];");
+            line("                ", "for (int c = 1; c <= properties.length; c++) {");
+            line("                    ", "properties[c - 1] = property(cursor.getColumnName(c));");
+            line("                ", "}");
+            line("            ", "}");
+            line("            ", qm.row + " row = new " + qm.row + "();");
+            line("            ", "for (int c = 1; c <= properties.length; c++) {");
+            line("                ", "switch (properties[c - 1]) {");
+            for (int i = 0; i < qm.properties.size(); i++) {
+                Element property = qm.properties.get(i);
+                TypeMirror t = propertyType(qm.rowClass, property);
+                line("                    ", "case " + i + ": {");
+                read("                        ", "value", t, "c");
+                String assign = (property.getKind() == ElementKind.METHOD)
+                                ? "row." + property.getSimpleName() + "(value);"
+                                : "row." + property.getSimpleName()
+                                  + " = value;";
+                if (t.getKind().isPrimitive()) {
+                    line("                        ", "if (!cursor.wasNull()) {");
+                    line("                            ", assign);
+                    line("                        ", "}");
+                } else {
+                    line("                        ", assign);
+                }
+                line("                        ", "break;");
+                line("                    ", "}");
+            }
+            line("                    ", "default:");
+            line("                        ", "break;");
+            line("                ", "}");
+            line("            ", "}");
+            line("            ", "return row;");
+        }
+
+        /**
+         * Writes the method that finds the property for a column name. A
+         * setter is used in preference to a field of the same name
+         */
+        private void writePropertyIndex(QueryMethod qm) {
+            Map<String, Integer> keys = new LinkedHashMap<>();
+            for (int i = 0; i < qm.properties.size(); i++) {
+                String key = propertyKey(qm.properties.get(i));
+                Integer existing = keys.get(key);
+                if (existing == null || qm.properties.get(existing).getKind()
+                                        != ElementKind.METHOD) {
+                    keys.put(key, i);
+                }
+            }
+            line("", "");
+            line("        ", "private static int property(String column) {");
+            line("            ", "switch (column.replace(\"_\", \"\").toLowerCase(java.util.Locale.ROOT)) {");
+            for (Map.Entry<String, Integer> e : keys.entrySet()) {
+                line("                ", "case " + elements.getConstantExpression(
+                        e.getKey()) + ":");
+                line("                    ", "return " + e.getValue() + ";");
+            }
+            line("                ", "default:");
+            line("                    ", "return -1;");
+            line("            ", "}");
+            line("        ", "}");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+MIT License
+
+Copyright (c) 2019 Aberta Ltd.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package aberta.sql.processor;
+
+import aberta.sql.SimpleSQL;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles sample interfaces with the processor and checks the generated
+ * code and the errors
+ */
+public class QueryProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics
+            = new DiagnosticCollector<>();
+    private File generated;
+
+    @Test
+    public void generatesQueries() throws Exception {
+        assertTrue(errors(), compile(
+                source("demo.Customer",
+                       "package demo;",
+                       "public class Customer {",
+                       "    public long id;",
+                       "    private String name;",
+                       "    public void setName(String name) { this.name = name; }",
+                       "}"),
+                source("demo.Pair",
+                       "package demo;",
+                       "public class Pair {",
+                       "    public Pair(long id, String name) {}",
+                       "}"),
+                source("demo.Status",
+                       "package demo;",
+                       "public enum Status { OPEN, CLOSED }"),
+                source("demo.Queries",
+                       "package demo;",
+                       "import aberta.sql.processor.Query;",
+                       "import java.util.List;",
+                       "public interface Queries {",
+                       "    @Query(\"select ID, NAME from CUSTOMER where NAME = ? and STATUS = ?\")",
+                       "    List<Customer> customers(String name, Status status);",
+                       "    @Query(\"select ID, NAME from CUSTOMER where ID = ?\")",
+                       "    Pair pair(long id);",
+                       "    @Query(\"select count(*) from CUSTOMER where CREATED > ? and NAME <> '?'\")",
+                       "    int count(java.sql.Timestamp created);",
+                       "}")));
+
+        String code = generated("demo/QueriesImpl.java");
+        assertTrue(code, code.contains("public final class QueriesImpl "
+                                       + "implements demo.Queries"));
+        assertTrue(code, code.contains(
+                "(name == null ? aberta.sql.SimpleSQL.param(null, "
+                + "java.sql.Types.VARCHAR) : (Object) name)"));
+        assertTrue(code, code.contains(
+                "(status == null ? aberta.sql.SimpleSQL.param(null, "
+                + "java.sql.Types.VARCHAR) : (Object) status.name())"));
+        assertTrue(code, code.contains(
+                "(created == null ? aberta.sql.SimpleSQL.param(null, "
+                + "java.sql.Types.TIMESTAMP) : (Object) created)"));
+        assertTrue(code, code.contains("singletonList(id)"));
+        assertTrue(code, code.contains("private boolean checked = false;"));
+        assertTrue(code, code.contains("private int[] properties = null;"));
+        assertTrue(code, code.contains("row.setName(value);"));
+        assertTrue(code, code.contains("row.id = value;"));
+        assertTrue(code, code.contains("return new demo.Pair(c1, c2);"));
+    }
+
+    @Test
+    public void wrongPlaceholderCount() throws Exception {
+        assertFalse(compile(source(
+                "demo.Queries",
+                "package demo;",
+                "import aberta.sql.processor.Query;",
+                "public interface Queries {",
+                "    @Query(\"select NAME from CUSTOMER where ID = ? and NAME = '?'\")",
+                "    String name(long id, String name);",
+                "}")));
+        assertError("The SQL has 1 placeholder but name has 2 parameters");
+    }
+
+    @Test
+    public void notInInterface() throws Exception {
+        assertFalse(compile(source(
+                "demo.Queries",
+                "package demo;",
+                "import aberta.sql.processor.Query;",
+                "public abstract class Queries {",
+                "    @Query(\"select NAME from CUSTOMER\")",
+                "    public abstract String name();",
+                "}")));
+        assertError("@Query methods must be declared in an interface");
+    }
+
+    @Test
+    public void noUsableConstructor() throws Exception {
+        assertFalse(compile(
+                source("demo.Pair",
+                       "package demo;",
+                       "public class Pair {",
+                       "    public Pair(long id, String name) {}",
+                       "    public Pair(String name, long id) {}",
+                       "}"),
+                source("demo.Queries",
+                       "package demo;",
+                       "import aberta.sql.processor.Query;",
+                       "public interface Queries {",
+                       "    @Query(\"select ID, NAME from CUSTOMER\")",
+                       "    Pair pair();",
+                       "}")));
+        assertError("demo.Pair must have a constructor without parameters or "
+                    + "only one constructor");
+    }
+
+    @Test
+    public void countsPlaceholders() {
+        assertEquals(2, QueryProcessor.countPlaceholders(
+                "select '?', \"?\" from T -- ?\n where A = ? /* ? */ and B = ?"));
+        assertEquals(0, QueryProcessor.countPlaceholders("select 1"));
+    }
+
+    private boolean compile(JavaFileObject... sources) throws IOException,
+            URISyntaxException {
+        File classes = folder.newFolder("classes");
+        generated = folder.newFolder("generated");
+        File simplesql = new File(SimpleSQL.class.getProtectionDomain().
+                getCodeSource().getLocation().toURI());
+        File processor = new File(Query.class.getProtectionDomain().
+                getCodeSource().getLocation().toURI());
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager files = compiler.getStandardFileManager(
+                diagnostics, Locale.ROOT, StandardCharsets.UTF_8);
+        files.setLocation(StandardLocation.CLASS_OUTPUT,
+                          Collections.singletonList(classes));
+        files.setLocation(StandardLocation.SOURCE_OUTPUT,
+                          Collections.singletonList(generated));
+        files.setLocation(StandardLocation.CLASS_PATH,
+                          Arrays.asList(simplesql, processor));
+
+        JavaCompiler.CompilationTask task = compiler.getTask(
+                null, files, diagnostics, null, null, Arrays.asList(sources));
+        task.setProcessors(Collections.singletonList(new QueryProcessor()));
+        try {
+            return task.call();
+        } finally {
+            files.close();
+        }
+    }
+
+    private String generated(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(generated, path).
+                toPath()), StandardCharsets.UTF_8);
+    }
+
+    private String errors() {
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.
+                getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(d.getMessage(Locale.ROOT));
+            }
+        }
+        return errors.toString();
+    }
+
+    private void assertError(String message) {
+        assertTrue(errors(), errors().contains(message));
+    }
+
+    private static JavaFileObject source(String className, String... lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        final String code = sb.toString();
+        return new SimpleJavaFileObject(new File(className.replace('.', '/')
+                + ".java").toURI(), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+/*
+MIT License
+
+Copyright (c) 2019 Aberta Ltd.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package aberta.sql.stream;
+
+import aberta.sql.SimpleSQL;
+import aberta.sql.SimpleSQL.ConnectionParameters;
+import aberta.sql.SimpleSQL.QueryOptions;
+import aberta.sql.SimpleSQL.RowIterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Query results as a {@link Stream}. This is kept apart from
+ * {@link SimpleSQL}, which still runs on Java 7.
+ *
+ * @author Chris Hopkins, Aberta Ltd.
+ */
+public final class SimpleSQLStreams {
+
+    private SimpleSQLStreams() {
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and return the rows as a
+     * Stream. The rows are fetched from the database as the stream is
+     * consumed. The connection is held until the stream is closed, so use it
+     * in a try-with-resources block.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @return a sequential stream of rows
+     */
+    public static Stream<Map<String, Object>> stream(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params) {
+        return stream(connectionParams, sql, params, null);
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and return the rows as a
+     * Stream.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @return a sequential stream of rows
+     * @see #stream(ConnectionParameters, String, List)
+     */
+    public static Stream<Map<String, Object>> stream(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, QueryOptions options) {
+        return stream(SimpleSQL.iterate(connectionParams, sql, params,
+                                        options));
+    }
+
+    /**
+     * @param rows the rows of a query
+     * @return the rows as a sequential stream that closes the iterator when
+     * the stream is closed
+     */
+    public static Stream<Map<String, Object>> stream(RowIterator rows) {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED
+                                                          | Spliterator.NONNULL),
+                false)
+                .onClose(rows::close);
+    }
+}
@@ -23,9 +23,38 @@ SOFTWARE.
  */
 package aberta.sql;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -33,14 +62,45 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Perform simple database queries without having to deal with the intricacies
@@ -85,6 +145,578 @@ public class SimpleSQL {
         public boolean update(Map<String, Object> row);
     }
 
+    /**
+     * Processes the rows fetched from the database a batch at a time
+     */
+    public interface BatchRowProcessor {
+
+        /**
+         * Process a batch of records that have been fetched from the database.
+         *
+         * @param rows the rows, in the order they were fetched. Only the last
+         * batch can have fewer rows than the batch size
+         * @return true to continue processing. Return false to stop fetching
+         * more records from the database
+         */
+        public boolean process(List<Map<String, Object>> rows);
+    }
+
+    /**
+     * Processes each row that is fetched from the database through a cursor
+     */
+    public interface RowCursorProcessor {
+
+        /**
+         * Process a record that has been fetched from the database.
+         *
+         * @param cursor the cursor, positioned on the current row. The same
+         * cursor is passed for every row so it must not be kept: use
+         * {@link RowCursor#snapshot()} to keep a copy of the row
+         * @return true to continue processing. Return false to stop fetching
+         * more records from the database
+         */
+        public boolean process(RowCursor cursor);
+    }
+
+    /**
+     * Makes an object from each row that is fetched from the database
+     *
+     * @param <T> the type of object
+     */
+    public interface RowMapper<T> {
+
+        /**
+         * @param cursor the cursor, positioned on the current row. Read the
+         * values by position where possible
+         * @return the object for the row
+         */
+        public T map(RowCursor cursor);
+    }
+
+    /**
+     * A view of the current row of a query. Columns are identified either by
+     * their position, starting at 1 as in JDBC, or by their name. The typed
+     * accessors read the values without creating objects for them where the
+     * JDBC driver allows it.
+     */
+    public static final class RowCursor {
+
+        private final ResultSet rs;
+        private final ColumnIndex columns;
+
+        private RowCursor(ResultSet rs, ColumnIndex columns) {
+            this.rs = rs;
+            this.columns = columns;
+        }
+
+        /**
+         * @return the number of columns returned by the query
+         */
+        public int getColumnCount() {
+            return columns.slots.length;
+        }
+
+        /**
+         * @param column the column position, starting at 1
+         * @return the name of the column
+         */
+        public String getColumnName(int column) {
+            return columns.names[columns.slots[column - 1]];
+        }
+
+        /**
+         * @param column the column position, starting at 1
+         * @return the value, narrowed to an Integer or Long when
+         * {@link QueryOptions#withNarrowNumbers(boolean)} is set
+         */
+        public Object getObject(int column) {
+            try {
+                return columns.getObject(rs, column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public Object getObject(String column) {
+            return getObject(columnOf(column));
+        }
+
+        /**
+         * @param column the column position, starting at 1
+         * @return the value, or false if it is null
+         */
+        public boolean getBoolean(int column) {
+            try {
+                return rs.getBoolean(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public boolean getBoolean(String column) {
+            return getBoolean(columnOf(column));
+        }
+
+        public String getString(int column) {
+            try {
+                return rs.getString(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public String getString(String column) {
+            return getString(columnOf(column));
+        }
+
+        /**
+         * @param column the column position, starting at 1
+         * @return the value, or 0 if it is null
+         */
+        public long getLong(int column) {
+            try {
+                return rs.getLong(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public long getLong(String column) {
+            return getLong(columnOf(column));
+        }
+
+        /**
+         * @param column the column position, starting at 1
+         * @return the value, or 0 if it is null
+         */
+        public int getInt(int column) {
+            try {
+                return rs.getInt(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public int getInt(String column) {
+            return getInt(columnOf(column));
+        }
+
+        /**
+         * @param column the column position, starting at 1
+         * @return the value, or 0 if it is null
+         */
+        public double getDouble(int column) {
+            try {
+                return rs.getDouble(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public double getDouble(String column) {
+            return getDouble(columnOf(column));
+        }
+
+        public BigDecimal getBigDecimal(int column) {
+            try {
+                return rs.getBigDecimal(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public BigDecimal getBigDecimal(String column) {
+            return getBigDecimal(columnOf(column));
+        }
+
+        public Timestamp getTimestamp(int column) {
+            try {
+                return rs.getTimestamp(column);
+            } catch (SQLException ex) {
+                throw failed(column, ex);
+            }
+        }
+
+        public Timestamp getTimestamp(String column) {
+            return getTimestamp(columnOf(column));
+        }
+
+        /**
+         * @return true if the last column read had a SQL NULL value
+         */
+        public boolean wasNull() {
+            try {
+                return rs.wasNull();
+            } catch (SQLException ex) {
+                throw new RuntimeException("wasNull failed", ex);
+            }
+        }
+
+        /**
+         * @return a copy of the current row that can be kept after the cursor
+         * has moved on
+         */
+        public Row snapshot() {
+            try {
+                return columns.read(rs);
+            } catch (SQLException ex) {
+                throw new RuntimeException("Failed to read row", ex);
+            }
+        }
+
+        private int columnOf(String name) {
+            int column = columns.columnOf(name);
+            if (column > 0) {
+                return column;
+            }
+            try {
+                return rs.findColumn(name);
+            } catch (SQLException ex) {
+                throw new RuntimeException("No column named " + name, ex);
+            }
+        }
+
+        private RuntimeException failed(int column, SQLException ex) {
+            return new RuntimeException("Failed to read column " + column, ex);
+        }
+    }
+
+    /**
+     * A row fetched from the database. The column names are shared by all the
+     * rows of a query and the values are held in a single array, so a Row
+     * takes much less memory than a LinkedHashMap with the same entries.
+     *
+     * A Row behaves like a LinkedHashMap: the entries are in the order of the
+     * columns and values can be changed. Adding a key that is not a column, or
+     * re-adding a removed one, turns the Row into an ordinary map.
+     */
+    public static final class Row extends AbstractMap<String, Object> {
+
+        private static final Object REMOVED = new Object();
+
+        private final ColumnIndex columns;
+        private final Object[] values;
+        private int size;
+        private Map<String, Object> map = null;
+
+        private Row(ColumnIndex columns, Object[] values) {
+            this.columns = columns;
+            this.values = values;
+            this.size = values.length;
+        }
+
+        /**
+         * @return a copy of this row that shares its column names
+         */
+        public Row copy() {
+            if (map != null) {
+                Row row = new Row(columns, new Object[0]);
+                row.map = new LinkedHashMap<>(map);
+                return row;
+            }
+            Row row = new Row(columns, values.clone());
+            row.size = size;
+            return row;
+        }
+
+        @Override
+        public int size() {
+            return (map != null) ? map.size() : size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (map != null) {
+                return map.containsKey(key);
+            }
+            int i = columns.indexOf(key);
+            return i >= 0 && values[i] != REMOVED;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (map != null) {
+                return map.get(key);
+            }
+            int i = columns.indexOf(key);
+            return (i < 0 || values[i] == REMOVED) ? null : values[i];
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            if (map == null) {
+                int i = columns.indexOf(key);
+                if (i >= 0 && values[i] != REMOVED) {
+                    Object previous = values[i];
+                    values[i] = value;
+                    return previous;
+                }
+                toMap();
+            }
+            return map.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            if (map != null) {
+                return map.remove(key);
+            }
+            int i = columns.indexOf(key);
+            if (i < 0 || values[i] == REMOVED) {
+                return null;
+            }
+            Object previous = values[i];
+            values[i] = REMOVED;
+            size--;
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            if (map != null) {
+                map.clear();
+                return;
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] = REMOVED;
+            }
+            size = 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            if (map != null) {
+                return map.entrySet();
+            }
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return Row.this.size();
+                }
+            };
+        }
+
+        private void toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != REMOVED) {
+                    m.put(columns.names[i], values[i]);
+                }
+            }
+            map = m;
+        }
+
+        private final class EntryIterator implements
+                Iterator<Map.Entry<String, Object>> {
+
+            private int next = skipRemoved(0);
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @Override
+            public Map.Entry<String, Object> next() {
+                if (map != null) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = skipRemoved(next + 1);
+                return new Entry(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0 || values[last] == REMOVED) {
+                    throw new IllegalStateException();
+                }
+                values[last] = REMOVED;
+                size--;
+            }
+
+            private int skipRemoved(int i) {
+                while (i < values.length && values[i] == REMOVED) {
+                    i++;
+                }
+                return i;
+            }
+        }
+
+        private final class Entry implements Map.Entry<String, Object> {
+
+            private final int i;
+
+            Entry(int i) {
+                this.i = i;
+            }
+
+            @Override
+            public String getKey() {
+                return columns.names[i];
+            }
+
+            @Override
+            public Object getValue() {
+                return (map != null) ? map.get(getKey()) : values[i];
+            }
+
+            @Override
+            public Object setValue(Object value) {
+                return put(getKey(), value);
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (!(obj instanceof Map.Entry)) {
+                    return false;
+                }
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) obj;
+                Object value = getValue();
+                return getKey().equals(e.getKey())
+                       && (value == null ? e.getValue() == null : value.
+                           equals(e.getValue()));
+            }
+
+            @Override
+            public int hashCode() {
+                Object value = getValue();
+                return getKey().hashCode() ^ (value == null ? 0 : value.
+                                              hashCode());
+            }
+
+            @Override
+            public String toString() {
+                return getKey() + "=" + getValue();
+            }
+        }
+    }
+
+    /**
+     * The column names of a query, resolved once from the ResultSetMetaData
+     * and shared by all its rows. If a name appears more than once the last
+     * column with that name provides the value, as it would in a map.
+     */
+    private static final class ColumnIndex {
+
+        final String[] names;
+        final int[] slots;
+        final int[] columns;
+        private final Map<String, Integer> positions = new HashMap<>();
+        /**
+         * How each JDBC column is read, or null if every column is read with
+         * getObject
+         */
+        private final int[] readers;
+
+        /**
+         * @param narrowNumbers true to read whole number decimal columns that
+         * fit as Integer or Long
+         */
+        ColumnIndex(ResultSetMetaData md, boolean narrowNumbers)
+                throws SQLException {
+            int count = md.getColumnCount();
+            List<String> unique = new ArrayList<>(count);
+            slots = new int[count];
+            readers = narrowNumbers ? new int[count] : null;
+            for (int i = 0; i < count; i++) {
+                if (readers != null) {
+                    readers[i] = numberReader(md, i + 1);
+                }
+                String name = md.getColumnName(i + 1);
+                Integer slot = positions.get(name);
+                if (slot == null) {
+                    slot = unique.size();
+                    unique.add(name);
+                    positions.put(name, slot);
+                }
+                slots[i] = slot;
+            }
+            names = unique.toArray(new String[unique.size()]);
+            columns = new int[names.length];
+            for (int i = 0; i < count; i++) {
+                columns[slots[i]] = i + 1;
+            }
+        }
+
+        int indexOf(Object name) {
+            Integer i = positions.get(name);
+            return (i != null) ? i : -1;
+        }
+
+        /**
+         * @return the JDBC position of the column, or -1 if there is no column
+         * with that name
+         */
+        int columnOf(Object name) {
+            int i = indexOf(name);
+            return (i >= 0) ? columns[i] : -1;
+        }
+
+        Row read(ResultSet rs) throws SQLException {
+            Object[] values = new Object[names.length];
+            for (int i = 0; i < slots.length; i++) {
+                values[slots[i]] = getObject(rs, i + 1);
+            }
+            return new Row(this, values);
+        }
+
+        /**
+         * @return the value of the column, narrowed to an Integer or Long if
+         * the column was resolved to be read that way
+         */
+        Object getObject(ResultSet rs, int column) throws SQLException {
+            if (readers == null) {
+                return rs.getObject(column);
+            }
+            switch (readers[column - 1]) {
+                case READ_INT:
+                    int i = rs.getInt(column);
+                    return rs.wasNull() ? null : Integer.valueOf(i);
+                case READ_LONG:
+                    long l = rs.getLong(column);
+                    return rs.wasNull() ? null : Long.valueOf(l);
+                default:
+                    return rs.getObject(column);
+            }
+        }
+    }
+
+    private static final int READ_OBJECT = 0;
+    private static final int READ_INT = 1;
+    private static final int READ_LONG = 2;
+
+    /**
+     * Decimal columns with no fraction are read as Integer if they have up to
+     * 9 digits and as Long if they have up to 18. All other columns, including
+     * decimals without a declared precision such as a plain Oracle NUMBER, are
+     * read with getObject.
+     */
+    private static int numberReader(ResultSetMetaData md, int column)
+            throws SQLException {
+        int type = md.getColumnType(column);
+        if (type != Types.NUMERIC && type != Types.DECIMAL) {
+            return READ_OBJECT;
+        }
+        int precision = md.getPrecision(column);
+        if (md.getScale(column) != 0 || precision <= 0) {
+            return READ_OBJECT;
+        }
+        if (precision <= 9) {
+            return READ_INT;
+        }
+        return (precision <= 18) ? READ_LONG : READ_OBJECT;
+    }
+
     public interface ConnectionParameters {
 
         public String getDriverClass();
@@ -228,28 +860,67 @@ public class SimpleSQL {
     public static Map<String, Object> queryFirst(
             ConnectionParameters connectionParams, String sql,
             List<Object> params) {
-        return queryFirstWithUpdater(connectionParams, sql, params, null);
+        return queryFirst(connectionParams, sql, params, null);
     }
 
-    private static Map<String, Object> queryFirstWithUpdater(
+    /**
+     * Makes a connection to the database, run the SQL and return the first row
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @return a Map representing the fetched row or null if no row was found.
+     * The entries will be returned in the order that the columns in the result
+     */
+    public static Map<String, Object> queryFirst(
             ConnectionParameters connectionParams, String sql,
-            List<Object> params, RowUpdater updater) {
+            List<Object> params, QueryOptions options) {
+        options = withDefaults(connectionParams, options);
+        ResultKey key = resultKey(connectionParams, sql, params, options, true);
+        if (key == null) {
+            return queryFirstWithUpdater(connectionParams, sql, params, options,
+                                         null);
+        }
+        List<Map<String, Object>> rows = RESULT_CACHE.get(key);
+        if (rows == null) {
+            Map<String, Object> row = queryFirstWithUpdater(connectionParams,
+                                                            sql, params,
+                                                            options, null);
+            rows = RESULT_CACHE.put(key, (row != null) ? Collections.
+                                    singletonList(row) : Collections.
+                                    <Map<String, Object>>emptyList(), options.
+                                    getCacheTtl());
+        }
+        return rows.isEmpty() ? null : rows.get(0);
+    }
 
-        final List<Map<String, Object>> rows = new ArrayList<>();
+    private static Map<String, Object> queryFirstWithUpdater(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, QueryOptions options, RowUpdater updater) {
 
-        executeQuery(connectionParams, sql, params, new RowProcessor() {
-                 @Override
-                 public boolean process(Map<String, Object> row) {
-                     rows.add(row);
-                     return false;
-                 }
-             }, updater);
+        RowCollector collector = new RowCollector(true);
+        executeQuery(connectionParams, sql, params, firstRowOptions(options),
+                     collector, updater);
+        return collector.first();
+    }
 
-        if (isEmpty(rows)) {
-            return null;
+    /**
+     * Only one row is wanted so, unless the caller says otherwise, tell the
+     * driver not to fetch or buffer any more than that.
+     */
+    private static QueryOptions firstRowOptions(QueryOptions options) {
+        QueryOptions first = (options != null) ? new QueryOptions(options)
+                             : new QueryOptions();
+        if (first.getMaxRows() == null) {
+            first.withMaxRows(1);
         }
-
-        return rows.get(0);
+        if (first.getFetchSize() == null) {
+            first.withFetchSize(1);
+        }
+        return first;
     }
 
     /**
@@ -269,16 +940,85 @@ public class SimpleSQL {
     public static List<Map<String, Object>> queryAsList(
             ConnectionParameters connectionParams, String sql,
             List<Object> params) {
+        return queryAsList(connectionParams, sql, params, null);
+    }
 
-        final List<Map<String, Object>> rows = new ArrayList<>();
-        query(connectionParams, sql, params, new RowProcessor() {
-          @Override
-          public boolean process(Map<String, Object> row) {
-              rows.add(row);
-              return true;
-          }
-      });
-        return rows;
+    /**
+     * Makes a connection to the database, run the SQL and return all the rows
+     * in a list. Do not use this method if the SQL could potentially return a
+     * large number of rows.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @return a List of Maps representing the fetched rows
+     */
+    public static List<Map<String, Object>> queryAsList(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, QueryOptions options) {
+
+        options = withDefaults(connectionParams, options);
+        ResultKey key = resultKey(connectionParams, sql, params, options, false);
+        List<Map<String, Object>> rows = (key != null) ? RESULT_CACHE.get(key)
+                                         : null;
+        if (rows != null) {
+            return rows;
+        }
+        RowCollector collector = new RowCollector(false);
+        query(connectionParams, sql, params, options, collector);
+        if (key != null) {
+            return RESULT_CACHE.put(key, collector.rows, options.getCacheTtl());
+        }
+        return collector.rows;
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and return all the rows
+     * column by column, for results that are large or only needed for their
+     * numbers. Whole numbers, booleans and dates and times (as milliseconds
+     * since 1970) are held in long arrays, floating point numbers in double
+     * arrays, each with a bitmap of the nulls, and strings as a dictionary of
+     * the distinct values and an index into it for each row.
+     * <p>
+     * Decimal columns are held as longs while their values are whole numbers
+     * and as doubles once a value with a fraction is fetched. Other types are
+     * held as objects.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @return the columns of the fetched rows
+     */
+    public static ColumnarResult queryAsColumns(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params) {
+        return queryAsColumns(connectionParams, sql, params, null);
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and return all the rows
+     * column by column.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @return the columns of the fetched rows
+     * @see #queryAsColumns(ConnectionParameters, String, List)
+     */
+    public static ColumnarResult queryAsColumns(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, QueryOptions options) {
+        ColumnsHandler handler = new ColumnsHandler();
+        executeQuery(connectionParams, sql, params, options, handler, false);
+        return handler.result();
     }
 
     /**
@@ -295,181 +1035,6277 @@ public class SimpleSQL {
     public static void query(ConnectionParameters connectionParams, String sql,
                              List<Object> params,
                              RowProcessor processor) {
-        executeQuery(connectionParams, sql, params, processor, null);
+        query(connectionParams, sql, params, null, processor);
     }
 
-    private static void executeQuery(ConnectionParameters connectionParams,
-                                     String sql, List<Object> params,
-                                     RowProcessor processor, RowUpdater updater) {
+    /**
+     * Makes a connection to the database, run the SQL and processes each row
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @param processor the processor for each row. The process should return
+     * true to continue fetching data
+     */
+    public static void query(ConnectionParameters connectionParams, String sql,
+                             List<Object> params, QueryOptions options,
+                             RowProcessor processor) {
+        executeQuery(connectionParams, sql, params, options, processor, null);
+    }
 
-        Connection c = getConnection(connectionParams);
+    /**
+     * Makes a connection to the database, run the SQL and processes the rows a
+     * batch at a time. Use this when there is a cost to each call of the
+     * processor that can be shared by many rows.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param batchSize the number of rows passed to each call of the
+     * processor. Also used as the fetch size
+     * @param processor the processor for each batch of rows. The process
+     * should return true to continue fetching data
+     */
+    public static void queryInBatches(ConnectionParameters connectionParams,
+                                      String sql, List<Object> params,
+                                      int batchSize,
+                                      BatchRowProcessor processor) {
+        queryInBatches(connectionParams, sql, params, new QueryOptions().
+                       withBatchSize(batchSize), processor);
+    }
 
-        boolean rollbackRequired = true;
-        boolean updateable = updater != null;
-        try {
-            c.setReadOnly(!updateable);
-            if (updateable) {
-                c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-            }
+    /**
+     * Makes a connection to the database, run the SQL and processes the rows a
+     * batch at a time.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query. The batch size is taken
+     * from {@link QueryOptions#withBatchSize(int)} or, if that is not set, the
+     * fetch size. Whichever is set is used for both
+     * @param processor the processor for each batch of rows. The process
+     * should return true to continue fetching data
+     * @see #queryInBatches(ConnectionParameters, String, List, int,
+     * BatchRowProcessor)
+     */
+    public static void queryInBatches(ConnectionParameters connectionParams,
+                                      String sql, List<Object> params,
+                                      QueryOptions options,
+                                      BatchRowProcessor processor) {
+        options = withDefaults(connectionParams, options);
+        executeQuery(connectionParams, sql, params, batchOptions(options),
+                     new BatchHandler(processor, options.getBatchSize()), false);
+    }
 
-            PreparedStatement ps = prepareStatement(c, sql, params, updateable);
-            try {
-                ResultSet rs = null;
-                try {
-                    rs = ps.executeQuery();
-                    ResultSetMetaData md = rs.getMetaData();
+    /**
+     * Aligns the fetch size and the batch size so that each batch is one
+     * round trip to the database
+     */
+    private static QueryOptions batchOptions(QueryOptions options) {
+        QueryOptions batch = new QueryOptions(options);
+        if (batch.getFetchSize() == null) {
+            batch.withFetchSize(batch.getBatchSize());
+        }
+        return batch;
+    }
 
-                    Boolean processMore = true;
+    /**
+     * Makes a connection to the database, run the SQL and passes a cursor
+     * positioned on each row to the processor. Use this instead of
+     * {@link #query(ConnectionParameters, String, List, RowProcessor)} when
+     * the rows do not need to be kept: no Map is created for each row and the
+     * values can be read with typed accessors.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param processor the processor for each row. The process should return
+     * true to continue fetching data
+     */
+    public static void queryWithCursor(ConnectionParameters connectionParams,
+                                       String sql, List<Object> params,
+                                       RowCursorProcessor processor) {
+        queryWithCursor(connectionParams, sql, params, null, processor);
+    }
 
-                    while (rs.next() && Boolean.TRUE.equals(processMore)) {
-                        Map<String, Object> row = new LinkedHashMap<>();
-                        for (int i = 1; i <= md.getColumnCount(); i++) {
-                            row.put(md.getColumnName(i), rs.getObject(i));
-                        }
+    /**
+     * Makes a connection to the database, run the SQL and passes a cursor
+     * positioned on each row to the processor.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @param processor the processor for each row. The process should return
+     * true to continue fetching data
+     * @see #queryWithCursor(ConnectionParameters, String, List,
+     * RowCursorProcessor)
+     */
+    public static void queryWithCursor(ConnectionParameters connectionParams,
+                                       String sql, List<Object> params,
+                                       QueryOptions options,
+                                       RowCursorProcessor processor) {
+        executeQuery(connectionParams, sql, params, options,
+                     new CursorHandler(processor), false);
+    }
 
-                        if (updater != null) {
-
-                            Map<String, Object> original = new LinkedHashMap<>();
-                            original.putAll(row);
-
-                            Boolean update = updater.update(row);
-                            if (update) {
-                                boolean differences = false;
-                                for (Map.Entry<String, Object> entry : row.
-                                        entrySet()) {
-                                    if (entryDifferent(entry, original)) {
-                                        rs.updateObject(entry.getKey(), entry.
-                                                        getValue());
-                                        differences = true;
-                                        rollbackRequired = false;
-                                    }
-                                }
-                                if (differences) {
-                                    rs.updateRow();
-                                    c.commit();
-                                }
-                            }
-                        }
+    /**
+     * Makes a connection to the database, run the SQL and return all the rows
+     * as objects of the given class. Each column is matched, once per SQL and
+     * class, to a property of the class by name, ignoring case and
+     * underscores (so CUSTOMER_ID matches customerId). The value is set with
+     * the setter, or straight into the field if there is no setter. Columns
+     * with no matching property are ignored.
+     * <p>
+     * If the class has no constructor without parameters, the constructor
+     * with one parameter per column is used instead, with the columns passed
+     * in the order of the query. It is an error for there to be more than one
+     * such constructor, or for a value not to fit its property or parameter.
+     *
+     * @param <T> the type of object to return
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param type the class of the objects to return
+     * @return a List of objects representing the fetched rows
+     */
+    public static <T> List<T> query(ConnectionParameters connectionParams,
+                                    String sql, List<Object> params,
+                                    Class<T> type) {
+        return query(connectionParams, sql, params, null, type);
+    }
 
-                        processMore = (processor != null) ? processor.process(
-                                row) : true;
-                    }
+    /**
+     * Makes a connection to the database, run the SQL and return all the rows
+     * as objects of the given class.
+     *
+     * @param <T> the type of object to return
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @param type the class of the objects to return
+     * @return a List of objects representing the fetched rows
+     * @see #query(ConnectionParameters, String, List, Class)
+     */
+    public static <T> List<T> query(ConnectionParameters connectionParams,
+                                    String sql, List<Object> params,
+                                    QueryOptions options, Class<T> type) {
+        return queryAsList(connectionParams, sql, params, options,
+                           new BeanMapper<>(sql, type));
+    }
 
-                } catch (Exception ex) {
-                    rollbackRequired = true;
-                    throw new RuntimeException("query or processing failed", ex);
-                } finally {
-                    close((ResultSet) rs);
-                }
-            } finally {
-                close((Statement) ps);
-            }
-        } catch (SQLException | RuntimeException ex) {
-            rollbackRequired = true;
-            throw new RuntimeException("Failed to execute SQL: " + sql, ex);
-        } finally {
-            close((Connection) c, rollbackRequired);
-        }
+    /**
+     * Makes a connection to the database, run the SQL and return all the rows
+     * as the objects the mapper makes from them.
+     *
+     * @param <T> the type of object to return
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @param mapper makes an object from each row
+     * @return a List of the objects made by the mapper
+     */
+    public static <T> List<T> queryAsList(ConnectionParameters connectionParams,
+                                          String sql, List<Object> params,
+                                          QueryOptions options,
+                                          RowMapper<T> mapper) {
+        MapperCollector<T> collector = new MapperCollector<>(mapper, false);
+        queryWithCursor(connectionParams, sql, params, options, collector);
+        return collector.rows;
     }
 
     /**
-     * Fetches the first row for the given SQL statement and calls the
-     * RowUpdater to manipulate the row. If any changes are done, and if the
-     * RowUpdater returns true the the row is updated.
+     * Makes a connection to the database, run the SQL and return the object
+     * the mapper makes from the first row.
      *
+     * @param <T> the type of object to return
      * @param connectionParams the connection parameters to connect to the
      * database.
      * @param sql the SQL SELECT query to run to fetch the data.
      * @param params an optional list of parameters to substitute for "?" in the
      * SQL
-     * @param updater code that will manipulate the fetched row.
-     * @return the updated row
+     * @param options optional settings for the query
+     * @param mapper makes an object from the row
+     * @return the object made by the mapper or null if no row was found
      */
-    public static Map<String, Object> fetchForUpdate(
-            ConnectionParameters connectionParams, String sql,
-            List<Object> params, RowUpdater updater) {
+    public static <T> T queryFirst(ConnectionParameters connectionParams,
+                                   String sql, List<Object> params,
+                                   QueryOptions options, RowMapper<T> mapper) {
+        MapperCollector<T> collector = new MapperCollector<>(mapper, true);
+        queryWithCursor(connectionParams, sql, params, firstRowOptions(
+                        withDefaults(connectionParams, options)), collector);
+        return collector.first();
+    }
 
-        if (updater != null) {
-            return queryFirstWithUpdater(connectionParams, sql, params, updater);
-        }
-        return queryFirst(connectionParams, sql, params);
+    /**
+     * Makes a connection to the database, run the SQL and return an Iterator
+     * over the rows. The rows are fetched from the database as the iterator is
+     * advanced, so any number of rows can be processed in constant memory.
+     *
+     * The connection is held until the last row has been read or the iterator
+     * is closed. Always close the iterator (e.g. in a finally block) if it
+     * might not be read to the end.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @return an iterator over the rows
+     */
+    public static RowIterator iterate(ConnectionParameters connectionParams,
+                                      String sql, List<Object> params) {
+        return iterate(connectionParams, sql, params, null);
     }
 
     /**
-     * 
+     * Makes a connection to the database, run the SQL and return an Iterator
+     * over the rows.
+     *
      * @param connectionParams the connection parameters to connect to the
      * database.
-     * @param sql
-     * @param listOfParameters
-     * @return the total count of updated records
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @return an iterator over the rows
+     * @see #iterate(ConnectionParameters, String, List)
      */
-    public static int batchUpdate(ConnectionParameters connectionParams, String sql, Collection<List<Object>> listOfParameters) {
-        Connection c = getConnection(connectionParams);
-        boolean committed = false;
+    public static RowIterator iterate(ConnectionParameters connectionParams,
+                                      String sql, List<Object> params,
+                                      QueryOptions options) {
+        options = withDefaults(connectionParams, options);
+
+        PooledConnection pc = getConnection(connectionParams);
+        int isolation = -1;
         try {
-            PreparedStatement ps = c.prepareStatement(sql);
+            isolation = beginQuery(pc, options, false);
+            return new RowIterator(pc, true, isolation, sql, params, options);
+        } catch (SQLException | RuntimeException ex) {
+            endQuery(pc, isolation, true);
+            throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+        }
+    }
 
-            for (List<Object> params: listOfParameters) {
-                int i = 1;
-                for (Object param : params) {
-                    ps.setObject(i++, param);
-                }
-                ps.addBatch();
-            }
-            
-            int updateCount = 0;
-            int[] counts = ps.executeBatch();
-            for (int count: counts) {
-                updateCount += count;
-            }
+    /**
+     * An Iterator over the rows of a query that fetches each row as it is
+     * needed. The iterator closes itself once the last row has been read.
+     */
+    public static final class RowIterator implements
+            Iterator<Map<String, Object>>, Closeable {
 
-            c.commit();
-            committed = true;
-                        
+        private final PooledConnection pc;
+        private final boolean ownsConnection;
+        private final int isolation;
+        private final String sql;
+        private final QueryOptions options;
+        private final InListExpansion expansion;
+        private int chunk = 0;
+        private StatementKey key;
+        private PreparedStatement ps;
+        private ResultSet rs = null;
+        private ColumnIndex columns;
+        private Row next = null;
+        private boolean closed = false;
+        private long rows = 0;
+
+        private RowIterator(PooledConnection pc, boolean ownsConnection,
+                            int isolation, String sql, List<Object> params,
+                            QueryOptions options) {
+            this.pc = pc;
+            this.ownsConnection = ownsConnection;
+            this.isolation = isolation;
+            this.sql = sql;
+            this.options = options;
+
+            expansion = expandInLists(sql, params, options.getInListLimit());
+            if (expansion != null) {
+                sql = expansion.sqls.get(0);
+                params = expansion.params.get(0);
+            }
             try {
-                ps.close();
+                open(sql, params);
             } catch (SQLException ex) {
-                Logger.getLogger(SimpleSQL.class.getName()).
-                        log(Level.SEVERE, null, ex);
+                closed = true;
+                SimpleSQL.close(rs);
+                pc.release(key, ps, false);
+                throw new RuntimeException("query failed", ex);
             }
-            
-            return updateCount;
+        }
 
-        } catch (SQLException ex) {
-            Logger.getLogger(SimpleSQL.class.getName()).log(Level.SEVERE, null,
-                                                            ex);
-            try {
-                c.rollback();
-            } catch (SQLException ex1) {
-                Logger.getLogger(SimpleSQL.class.getName()).
-                        log(Level.SEVERE, null, ex1);
+        /**
+         * Runs the query, or one part of it if a collection parameter had to
+         * be split, limited to the rows still wanted
+         */
+        private void open(String sql, List<Object> params)
+                throws SQLException {
+            QueryOptions chunkOptions = options;
+            Integer maxRows = options.getMaxRows();
+            if (rows > 0 && maxRows != null && maxRows > 0) {
+                chunkOptions = new QueryOptions(options).withMaxRows(
+                        (int) (maxRows - rows));
             }
-            throw new RuntimeException("Update failed: " + sql, ex);
+            key = statementKey(sql, chunkOptions, false, 0);
+            ps = prepareStatement(pc, key, params, chunkOptions);
+            rs = ps.executeQuery();
+            columns = new ColumnIndex(rs.getMetaData(), options.
+                                      isNarrowNumbers());
+        }
 
-        } finally {
-            if (!committed) {
-                try {
-                    c.rollback();
-                } catch (SQLException ex) {
-                    Logger.getLogger(SimpleSQL.class.getName()).
-                            log(Level.SEVERE, null, ex);
-                }
+        /**
+         * @return true if the query for the next part of a split collection
+         * parameter was run
+         */
+        private boolean nextChunk() throws SQLException {
+            Integer maxRows = options.getMaxRows();
+            if (expansion == null || chunk + 1 == expansion.sqls.size()
+                || maxRows != null && maxRows > 0 && rows >= maxRows) {
+                return false;
+            }
+            SimpleSQL.close(rs);
+            rs = null;
+            pc.release(key, ps, true);
+            ps = null;
+            chunk++;
+            open(expansion.sqls.get(chunk), expansion.params.get(chunk));
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (closed) {
+                return false;
             }
             try {
-                c.close();
-            } catch (SQLException ex) {
-                Logger.getLogger(SimpleSQL.class.getName()).
-                        log(Level.SEVERE, null, ex);
+                do {
+                    if (rs.next()) {
+                        rows++;
+                        next = columns.read(rs);
+                        return true;
+                    }
+                } while (nextChunk());
+            } catch (SQLException | RuntimeException ex) {
+                close(false);
+                throw new RuntimeException("Failed to fetch from SQL: " + sql,
+                                           ex);
             }
+            close(true);
+            return false;
         }
-    }
 
-    private static Connection getConnection(ConnectionParameters params) {
+        @Override
+        public Map<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Row row = next;
+            next = null;
+            return row;
+        }
 
-        String className = params.getDriverClass();
-        String connection = params.getConnectionString();
-        String user = params.getUser();
-        String password = params.getPassword();
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops fetching rows and releases the statement and connection.
+         * Closing a closed iterator has no effect.
+         */
+        @Override
+        public void close() {
+            close(false);
+        }
+
+        private void close(boolean exhausted) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            next = null;
+
+            QueryStatistics statistics = options.getStatistics();
+            if (statistics != null) {
+                statistics.rows.addAndGet(rows);
+            }
+
+            boolean reusable = rs != null;
+            Integer maxRows = options.getMaxRows();
+            if (maxRows != null && maxRows > 0 && rows >= maxRows) {
+                exhausted = true;
+            }
+            if (!exhausted && rs != null && options.isCancelOnEarlyStop()) {
+                reusable = false;
+                cancel(ps, options.getCancelTimeout(), statistics);
+            }
+
+            long closing = System.nanoTime();
+            SimpleSQL.close(rs);
+            pc.release(key, ps, reusable);
+            if (statistics != null) {
+                statistics.closeNanos.addAndGet(System.nanoTime() - closing);
+            }
+            rs = null;
+            ps = null;
+
+            if (ownsConnection) {
+                endQuery(pc, isolation, true);
+            }
+        }
+    }
+
+    private static void executeQuery(ConnectionParameters connectionParams,
+                                     String sql, List<Object> params,
+                                     QueryOptions options,
+                                     RowProcessor processor, RowUpdater updater) {
+        executeQuery(connectionParams, sql, params, options,
+                     new RowHandler(processor, updater, true), updater != null);
+    }
+
+    private static void executeQuery(ConnectionParameters connectionParams,
+                                     String sql, List<Object> params,
+                                     QueryOptions options,
+                                     ResultHandler handler, boolean updateable) {
+
+        options = withDefaults(connectionParams, options);
+
+        PooledConnection pc = getConnection(connectionParams);
+
+        boolean rollbackRequired = true;
+        int isolation = -1;
+        try {
+            isolation = beginQuery(pc, options, updateable);
+
+            executeQuery(pc, sql, params, options, handler, updateable);
+            rollbackRequired = !handler.updated;
+
+        } catch (SQLException | RuntimeException ex) {
+            rollbackRequired = true;
+            throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+        } finally {
+            endQuery(pc, isolation, rollbackRequired);
+        }
+    }
+
+    /**
+     * Sets up the connection for a query that has a connection to itself.
+     *
+     * @return the transaction isolation to restore when the query ends, or -1
+     */
+    private static int beginQuery(PooledConnection pc, QueryOptions options,
+                                  boolean updateable) throws SQLException {
+        Connection c = pc.connection;
+
+        Boolean readOnly = options.getReadOnly();
+        c.setReadOnly((readOnly != null) ? readOnly : !updateable);
+
+        int isolation = -1;
+        Integer requiredIsolation = options.getTransactionIsolation();
+        if (requiredIsolation == null && updateable) {
+            requiredIsolation = Connection.TRANSACTION_READ_COMMITTED;
+        }
+        if (requiredIsolation != null) {
+            if (pc.pool != null) {
+                isolation = c.getTransactionIsolation();
+            }
+            c.setTransactionIsolation(requiredIsolation);
+        }
+        return isolation;
+    }
+
+    /**
+     * Ends the transaction of a query started with beginQuery and releases
+     * the connection
+     */
+    private static void endQuery(PooledConnection pc, int isolation,
+                                 boolean rollbackRequired) {
+        if (isolation >= 0) {
+            try {
+                pc.connection.rollback();
+                rollbackRequired = false;
+                pc.connection.setTransactionIsolation(isolation);
+            } catch (SQLException ex) {
+                rollbackRequired = true;
+            }
+        }
+        release(pc, rollbackRequired);
+    }
+
+    private static StatementKey statementKey(String sql, QueryOptions options,
+                                             boolean updateable,
+                                             int holdability) {
+        Integer type = options.getResultSetType();
+        return new StatementKey(sql, (type != null) ? type
+                                     : ResultSet.TYPE_FORWARD_ONLY,
+                                updateable
+                                ? ResultSet.CONCUR_UPDATABLE
+                                : ResultSet.CONCUR_READ_ONLY, holdability);
+    }
+
+    /**
+     * Runs the query on an open connection and passes each row to the
+     * handler. If a collection parameter had to be split, the query is run
+     * for each part in turn, with the rows passed to the same handler, until
+     * the maximum number of rows have been passed in all.
+     */
+    private static void executeQuery(PooledConnection pc, String sql,
+                                     List<Object> params,
+                                     QueryOptions options,
+                                     ResultHandler handler,
+                                     boolean updateable) {
+        try {
+            InListExpansion expansion = expandInLists(sql, params, options.
+                                                      getInListLimit());
+            if (expansion == null) {
+                executeQuery(pc, sql, params, options, handler, updateable,
+                             true, true);
+                return;
+            }
+            Integer maxRows = options.getMaxRows();
+            long remaining = (maxRows != null && maxRows > 0) ? maxRows : -1;
+            int chunks = expansion.sqls.size();
+            for (int i = 0; i < chunks; i++) {
+                QueryOptions chunkOptions = options;
+                if (i > 0 && remaining > 0) {
+                    chunkOptions = new QueryOptions(options).withMaxRows(
+                            (int) remaining);
+                }
+                long rows = executeQuery(pc, expansion.sqls.get(i),
+                                         expansion.params.get(i), chunkOptions,
+                                         handler, updateable, i == 0,
+                                         i == chunks - 1);
+                if (rows < 0) {
+                    break;
+                }
+                if (remaining > 0) {
+                    remaining -= rows;
+                    if (remaining <= 0) {
+                        if (i < chunks - 1) {
+                            finish(pc, handler);
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            handler.close();
+        }
+    }
+
+    private static void finish(PooledConnection pc, ResultHandler handler) {
+        try {
+            handler.finish(pc.connection);
+        } catch (Exception ex) {
+            throw new RuntimeException("query or processing failed", ex);
+        }
+    }
+
+    /**
+     * @param first true to start the handler
+     * @param last true to finish the handler if all the rows are read
+     * @return the number of rows read if all of them were, or -1 if the
+     * handler stopped
+     */
+    private static long executeQuery(PooledConnection pc, String sql,
+                                        List<Object> params,
+                                        QueryOptions options,
+                                        ResultHandler handler,
+                                        boolean updateable, boolean first,
+                                        boolean last) {
+
+        boolean reusable = false;
+
+        StatementKey key = statementKey(sql, options, updateable,
+                                        handler.holdability());
+        PreparedStatement ps = prepareStatement(pc, key, params, options);
+        QueryStatistics statistics = options.getStatistics();
+        ResultSet rs = null;
+        try {
+            rs = ps.executeQuery();
+            ColumnIndex columns = new ColumnIndex(rs.getMetaData(), options.
+                                                  isNarrowNumbers());
+            if (first) {
+                handler.start(rs, columns);
+            }
+
+            boolean processMore = true;
+            boolean exhausted = false;
+            long rows = 0;
+
+            if (options.getPrefetchBatchSize() > 0
+                && handler instanceof PrefetchHandler
+                && ((PrefetchHandler) handler).canPrefetch()) {
+                Prefetcher prefetcher = new Prefetcher(rs, columns, options);
+                exhausted = prefetcher.process((PrefetchHandler) handler);
+                rows = prefetcher.rows;
+            } else {
+                while (processMore) {
+                    if (!rs.next()) {
+                        exhausted = true;
+                        break;
+                    }
+                    rows++;
+                    processMore = handler.row(pc.connection, rs, columns);
+                }
+            }
+            if (exhausted && last) {
+                handler.finish(pc.connection);
+            }
+            long read = exhausted ? rows : -1;
+
+            if (statistics != null) {
+                statistics.rows.addAndGet(rows);
+            }
+
+            Integer maxRows = options.getMaxRows();
+            if (maxRows != null && maxRows > 0 && rows >= maxRows) {
+                exhausted = true;
+            }
+
+            reusable = true;
+            if (!exhausted && options.isCancelOnEarlyStop()) {
+                reusable = false;
+                cancel(ps, options.getCancelTimeout(), statistics);
+            }
+            return read;
+
+        } catch (Exception ex) {
+            throw new RuntimeException("query or processing failed", ex);
+        } finally {
+            long closing = System.nanoTime();
+            close((ResultSet) rs);
+            pc.release(key, ps, reusable);
+            if (statistics != null) {
+                statistics.closeNanos.addAndGet(System.nanoTime() - closing);
+            }
+        }
+    }
+
+    /**
+     * Cancels a statement whose results are no longer wanted so that closing
+     * it does not wait for the driver to fetch or discard the rest of the
+     * rows.
+     *
+     * @param timeout if greater than zero the cancel is made on a separate
+     * thread and abandoned if it takes longer than this many milliseconds
+     */
+    private static void cancel(final Statement s, long timeout,
+                               QueryStatistics statistics) {
+        long start = System.nanoTime();
+        try {
+            if (timeout <= 0) {
+                s.cancel();
+            } else {
+                Future<?> cancelled = helperThreads().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            s.cancel();
+                        } catch (SQLException ex) {
+                            Logger.getLogger(SimpleSQL.class.getName()).
+                                    log(Level.FINE, "Cancel failed", ex);
+                        }
+                    }
+                });
+                cancelled.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (SQLException | ExecutionException | TimeoutException ex) {
+            Logger.getLogger(SimpleSQL.class.getName()).
+                    log(Level.FINE, "Cancel failed", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (statistics != null) {
+                statistics.cancels.incrementAndGet();
+                statistics.cancelNanos.addAndGet(nanos);
+            }
+            Logger.getLogger(SimpleSQL.class.getName()).
+                    log(Level.FINE, "Statement cancelled in {0} ms",
+                        nanos / 1000000);
+        }
+    }
+
+    private static ExecutorService helperThreads = null;
+
+    /**
+     * @return daemon threads for work that must not hold up the caller
+     */
+    private static synchronized ExecutorService helperThreads() {
+        if (helperThreads == null) {
+            helperThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicLong count = new AtomicLong();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SimpleSQL helper " + count.
+                                          incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return helperThreads;
+    }
+
+    /**
+     * Handles each row fetched by a query
+     */
+    private abstract static class ResultHandler {
+
+        /**
+         * Set once a row has been updated
+         */
+        boolean updated = false;
+
+        private Boolean holdable = null;
+
+        /**
+         * Called once the query has run, before the first row
+         */
+        void start(ResultSet rs, ColumnIndex columns) throws Exception {
+        }
+
+        /**
+         * @return true to fetch the next row
+         */
+        abstract boolean row(Connection c, ResultSet rs, ColumnIndex columns)
+                throws Exception;
+
+        /**
+         * Called once all the rows have been handled, unless the handler
+         * stopped the query early
+         */
+        void finish(Connection c) throws Exception {
+        }
+
+        /**
+         * Called after the query, whether or not it succeeded, to release
+         * anything the handler holds
+         */
+        void close() {
+        }
+
+        /**
+         * @return the holdability the result set needs, or 0 for the default
+         * of the driver
+         */
+        int holdability() {
+            return 0;
+        }
+
+        /**
+         * @return true if the result set stays open when the transaction is
+         * committed
+         */
+        boolean holdable(ResultSet rs) {
+            if (holdable == null) {
+                try {
+                    holdable = rs.getHoldability()
+                               == ResultSet.HOLD_CURSORS_OVER_COMMIT;
+                } catch (SQLException ex) {
+                    holdable = false;
+                }
+            }
+            return holdable;
+        }
+    }
+
+    /**
+     * A handler that can take the values of each row, rather than the
+     * ResultSet, so the rows can be fetched ahead on another thread by a
+     * {@link Prefetcher}
+     */
+    private abstract static class PrefetchHandler extends ResultHandler {
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex columns)
+                throws Exception {
+            return row(columns.read(rs));
+        }
+
+        /**
+         * @return true if the rows can be fetched ahead for this query
+         */
+        boolean canPrefetch() {
+            return true;
+        }
+
+        /**
+         * Handles a row that was fetched ahead.
+         *
+         * @return true to continue with the next row
+         */
+        abstract boolean row(Row row) throws Exception;
+    }
+
+    /**
+     * Fetches rows on a helper thread, in batches, while the rows already
+     * fetched are processed on the caller's thread. The queue between the two
+     * is bounded so the fetching waits when processing falls behind.
+     */
+    private static final class Prefetcher implements Runnable {
+
+        private static final List<Row> END = new ArrayList<>(0);
+
+        private final ResultSet rs;
+        private final ColumnIndex columns;
+        private final int batchSize;
+        private final BlockingQueue<List<Row>> queue;
+        private final QueryStatistics statistics;
+        private volatile boolean stop = false;
+        private volatile boolean exhausted = false;
+        private volatile Throwable error = null;
+        volatile long rows = 0;
+
+        Prefetcher(ResultSet rs, ColumnIndex columns, QueryOptions options) {
+            this.rs = rs;
+            this.columns = columns;
+            this.batchSize = options.getPrefetchBatchSize();
+            this.queue = new ArrayBlockingQueue<>(options.
+                    getPrefetchQueueSize());
+            this.statistics = options.getStatistics();
+        }
+
+        /**
+         * Fetches the rows on a helper thread and passes them to the handler
+         * on this one.
+         *
+         * @return true if every row was fetched and processed
+         */
+        boolean process(PrefetchHandler handler) throws Exception {
+            Future<?> reader = helperThreads().submit(this);
+            boolean completed = false;
+            try {
+                while (true) {
+                    long start = System.nanoTime();
+                    List<Row> batch = queue.take();
+                    if (statistics != null) {
+                        statistics.processorWaitNanos.addAndGet(
+                                System.nanoTime() - start);
+                    }
+                    if (batch == END) {
+                        completed = error == null && exhausted;
+                        break;
+                    }
+                    for (Row row : batch) {
+                        if (!handler.row(row)) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                stop = true;
+                while (!reader.isDone()) {
+                    queue.clear();
+                    try {
+                        reader.get(10, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ex) {
+                        // still fetching the current batch
+                    }
+                }
+            }
+            if (error instanceof Exception) {
+                throw (Exception) error;
+            }
+            if (error != null) {
+                throw new RuntimeException("Prefetch failed", error);
+            }
+            return completed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stop) {
+                    List<Row> batch = new ArrayList<>(batchSize);
+                    while (batch.size() < batchSize) {
+                        if (!rs.next()) {
+                            exhausted = true;
+                            break;
+                        }
+                        rows++;
+                        batch.add(columns.read(rs));
+                    }
+                    if (!batch.isEmpty()) {
+                        put(batch);
+                    }
+                    if (exhausted) {
+                        break;
+                    }
+                }
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                try {
+                    put(END);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void put(List<Row> batch) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                while (!stop) {
+                    if (queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } finally {
+                if (statistics != null) {
+                    statistics.readerWaitNanos.addAndGet(
+                            System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads each row into a Row, updates it if there is a RowUpdater and
+     * passes it to the RowProcessor
+     */
+    private static final class RowHandler extends PrefetchHandler {
+
+        private final RowProcessor processor;
+        private final RowUpdater updater;
+        private final boolean commit;
+        private final int commitInterval;
+        /**
+         * true to commit each updated row as it is updated, as fetchForUpdate
+         * and the query methods with a RowUpdater always have
+         */
+        private final boolean commitEachRow;
+        private int uncommitted = 0;
+        long changed = 0;
+
+        /**
+         * @param commit true to commit each updated row
+         */
+        RowHandler(RowProcessor processor, RowUpdater updater, boolean commit) {
+            this(processor, updater, commit, 0, commit);
+        }
+
+        /**
+         * @param commit true to commit the updated rows
+         * @param commitInterval commit after this many updated rows, if the
+         * result set stays open over a commit. The rest are committed when the
+         * last row has been handled
+         */
+        RowHandler(RowProcessor processor, RowUpdater updater, boolean commit,
+                   int commitInterval) {
+            this(processor, updater, commit, commitInterval, false);
+        }
+
+        private RowHandler(RowProcessor processor, RowUpdater updater,
+                           boolean commit, int commitInterval,
+                           boolean commitEachRow) {
+            this.processor = processor;
+            this.updater = updater;
+            this.commit = commit;
+            this.commitInterval = commitInterval;
+            this.commitEachRow = commitEachRow;
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex columns)
+                throws Exception {
+
+            Row row = columns.read(rs);
+
+            if (updater != null) {
+
+                Map<String, Object> original = row.copy();
+
+                Boolean update = updater.update(row);
+                if (update) {
+                    boolean differences = false;
+                    for (Map.Entry<String, Object> entry : row.entrySet()) {
+                        if (entryDifferent(entry, original)) {
+                            rs.updateObject(entry.getKey(), entry.getValue());
+                            differences = true;
+                            updated = true;
+                        }
+                    }
+                    if (differences) {
+                        rs.updateRow();
+                        changed++;
+                        uncommitted++;
+                        if (commitEachRow || commit && commitInterval > 0
+                                             && uncommitted >= commitInterval
+                                             && holdable(rs)) {
+                            c.commit();
+                            uncommitted = 0;
+                        }
+                    }
+                }
+            }
+
+            Boolean processMore = (processor != null) ? processor.process(row)
+                                  : true;
+            return Boolean.TRUE.equals(processMore);
+        }
+
+        @Override
+        void finish(Connection c) throws SQLException {
+            if (commit && uncommitted > 0) {
+                c.commit();
+                uncommitted = 0;
+            }
+        }
+
+        @Override
+        int holdability() {
+            return (commit && commitInterval > 0)
+                   ? ResultSet.HOLD_CURSORS_OVER_COMMIT : 0;
+        }
+
+        @Override
+        boolean canPrefetch() {
+            return updater == null;
+        }
+
+        @Override
+        boolean row(Row row) {
+            Boolean processMore = (processor != null) ? processor.process(row)
+                                  : true;
+            return Boolean.TRUE.equals(processMore);
+        }
+    }
+
+    /**
+     * Applies the changes a RowUpdater makes to each row as UPDATE statements
+     * that find the row by its key columns. Rows that change the same columns
+     * share a statement, and are sent to the database in batches.
+     */
+    private static final class KeyUpdateHandler extends ResultHandler {
+
+        private final String table;
+        private final List<String> keyColumns;
+        private final RowUpdater updater;
+        private final boolean commit;
+        private final int batchSize;
+        private final int commitInterval;
+        private final Map<List<String>, KeyUpdate> updates = new HashMap<>();
+        private int uncommitted = 0;
+        long changed = 0;
+
+        /**
+         * @param commit true to commit the updated rows, every commit interval
+         * rows if the result set stays open over a commit, and at the end
+         */
+        KeyUpdateHandler(String table, List<String> keyColumns,
+                         RowUpdater updater, boolean commit,
+                         QueryOptions options) {
+            this.table = table;
+            this.keyColumns = new ArrayList<>(keyColumns);
+            this.updater = updater;
+            this.commit = commit;
+            this.batchSize = options.getBatchSize();
+            this.commitInterval = options.getCommitInterval();
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex columns)
+                throws Exception {
+
+            Row row = columns.read(rs);
+            Map<String, Object> original = row.copy();
+
+            if (updater == null || !updater.update(row)) {
+                return true;
+            }
+
+            List<String> changedColumns = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+                if (entryDifferent(entry, original)) {
+                    changedColumns.add(entry.getKey());
+                    values.add(entry.getValue());
+                }
+            }
+            if (changedColumns.isEmpty()) {
+                return true;
+            }
+
+            KeyUpdate update = updates.get(changedColumns);
+            if (update == null) {
+                update = new KeyUpdate(c.prepareStatement(updateSql(
+                        changedColumns)));
+                updates.put(changedColumns, update);
+            }
+
+            int i = 1;
+            for (Object value : values) {
+                update.binder.bind(update.ps, i++, value);
+            }
+            for (String keyColumn : keyColumns) {
+                Object value = original.get(keyColumn);
+                if (value == null) {
+                    throw new SQLException("Key column " + keyColumn
+                                           + " is missing or null");
+                }
+                update.binder.bind(update.ps, i++, value);
+            }
+            update.ps.addBatch();
+            update.pending++;
+            changed++;
+            uncommitted++;
+            updated = true;
+
+            if (update.pending >= batchSize) {
+                update.flush();
+            }
+            if (commit && commitInterval > 0 && uncommitted >= commitInterval
+                && holdable(rs)) {
+                flush();
+                c.commit();
+                uncommitted = 0;
+            }
+            return true;
+        }
+
+        @Override
+        void finish(Connection c) throws SQLException {
+            flush();
+            if (commit && uncommitted > 0) {
+                c.commit();
+                uncommitted = 0;
+            }
+        }
+
+        @Override
+        void close() {
+            for (KeyUpdate update : updates.values()) {
+                SimpleSQL.close(update.ps);
+            }
+            updates.clear();
+        }
+
+        @Override
+        int holdability() {
+            return (commit && commitInterval > 0)
+                   ? ResultSet.HOLD_CURSORS_OVER_COMMIT : 0;
+        }
+
+        private void flush() throws SQLException {
+            for (KeyUpdate update : updates.values()) {
+                update.flush();
+            }
+        }
+
+        private String updateSql(List<String> changedColumns) {
+            StringBuilder sql = new StringBuilder("update ").append(table).
+                    append(" set ");
+            String separator = "";
+            for (String column : changedColumns) {
+                sql.append(separator).append(column).append(" = ?");
+                separator = ", ";
+            }
+            separator = " where ";
+            for (String column : keyColumns) {
+                sql.append(separator).append(column).append(" = ?");
+                separator = " and ";
+            }
+            return sql.toString();
+        }
+    }
+
+    /**
+     * The UPDATE statement for one set of changed columns, and the number of
+     * rows added to its batch since it was last executed
+     */
+    private static final class KeyUpdate {
+
+        final PreparedStatement ps;
+        final ParameterBinder binder = new ParameterBinder();
+        int pending = 0;
+
+        KeyUpdate(PreparedStatement ps) {
+            this.ps = ps;
+        }
+
+        void flush() throws SQLException {
+            if (pending > 0) {
+                ps.executeBatch();
+                pending = 0;
+            }
+        }
+    }
+
+    /**
+     * Collects the rows into batches for a BatchRowProcessor
+     */
+    private static final class BatchHandler extends PrefetchHandler {
+
+        private final BatchRowProcessor processor;
+        private final int batchSize;
+        private List<Map<String, Object>> batch;
+
+        BatchHandler(BatchRowProcessor processor, int batchSize) {
+            this.processor = processor;
+            this.batchSize = batchSize;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        @Override
+        boolean row(Row row) {
+            batch.add(row);
+            if (batch.size() < batchSize) {
+                return true;
+            }
+            return flush();
+        }
+
+        @Override
+        void finish(Connection c) {
+            if (!batch.isEmpty()) {
+                flush();
+            }
+        }
+
+        private boolean flush() {
+            List<Map<String, Object>> rows = batch;
+            batch = new ArrayList<>(batchSize);
+            return processor == null || processor.process(rows);
+        }
+    }
+
+    /**
+     * Passes the same RowCursor, positioned on each row in turn, to the
+     * RowCursorProcessor
+     */
+    private static final class CursorHandler extends ResultHandler {
+
+        private final RowCursorProcessor processor;
+        private RowCursor cursor = null;
+
+        CursorHandler(RowCursorProcessor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex columns)
+                throws Exception {
+            if (cursor == null || cursor.rs != rs) {
+                cursor = new RowCursor(rs, columns);
+            }
+            return processor == null || processor.process(cursor);
+        }
+    }
+
+    /**
+     * Collects the objects a RowMapper makes from each row
+     */
+    private static final class MapperCollector<T> implements
+            RowCursorProcessor {
+
+        private final RowMapper<T> mapper;
+        private final boolean first;
+        final List<T> rows = new ArrayList<>();
+
+        MapperCollector(RowMapper<T> mapper, boolean first) {
+            this.mapper = mapper;
+            this.first = first;
+        }
+
+        @Override
+        public boolean process(RowCursor cursor) {
+            rows.add(mapper.map(cursor));
+            return !first;
+        }
+
+        T first() {
+            return rows.isEmpty() ? null : rows.get(0);
+        }
+    }
+
+    /**
+     * Maps each row to an object of a class, with the binding for the SQL and
+     * class, which is found on the first row
+     */
+    private static final class BeanMapper<T> implements RowMapper<T> {
+
+        private final String sql;
+        private final Class<T> type;
+        private BeanBinding<T> binding = null;
+
+        BeanMapper(String sql, Class<T> type) {
+            this.sql = sql;
+            this.type = type;
+        }
+
+        @Override
+        public T map(RowCursor cursor) {
+            if (binding == null) {
+                binding = beanBinding(sql, type, cursor);
+            }
+            return binding.map(cursor);
+        }
+    }
+
+    private static final Map<BindingKey, BeanBinding<?>> BINDINGS
+            = new ConcurrentHashMap<>();
+
+    private static final int MAX_BINDINGS = 1000;
+
+    @SuppressWarnings("unchecked")
+    private static <T> BeanBinding<T> beanBinding(String sql, Class<T> type,
+                                                  RowCursor cursor) {
+        BindingKey key = new BindingKey(sql, type);
+        BeanBinding<T> binding = (BeanBinding<T>) BINDINGS.get(key);
+        if (binding == null || binding.columns != cursor.getColumnCount()) {
+            binding = new BeanBinding<>(type, cursor);
+            if (BINDINGS.size() >= MAX_BINDINGS) {
+                BINDINGS.clear();
+            }
+            BINDINGS.put(key, binding);
+        }
+        return binding;
+    }
+
+    private static final class BindingKey {
+
+        final String sql;
+        final Class<?> type;
+
+        BindingKey(String sql, Class<?> type) {
+            this.sql = sql;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BindingKey)) {
+                return false;
+            }
+            BindingKey other = (BindingKey) obj;
+            return type == other.type && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + type.hashCode();
+        }
+    }
+
+    private static final int VALUE_OBJECT = 0;
+    private static final int VALUE_INT = 1;
+    private static final int VALUE_LONG = 2;
+    private static final int VALUE_DOUBLE = 3;
+    private static final int VALUE_FLOAT = 4;
+    private static final int VALUE_SHORT = 5;
+    private static final int VALUE_BYTE = 6;
+    private static final int VALUE_BOOLEAN = 7;
+    private static final int VALUE_STRING = 8;
+    private static final int VALUE_DECIMAL = 9;
+    private static final int VALUE_TIMESTAMP = 10;
+    private static final int VALUE_DATE = 11;
+
+    /**
+     * @return how to read a value for a property of the given type
+     */
+    private static int valueReader(Class<?> type) {
+        if (type == int.class || type == Integer.class) {
+            return VALUE_INT;
+        } else if (type == long.class || type == Long.class) {
+            return VALUE_LONG;
+        } else if (type == double.class || type == Double.class) {
+            return VALUE_DOUBLE;
+        } else if (type == float.class || type == Float.class) {
+            return VALUE_FLOAT;
+        } else if (type == short.class || type == Short.class) {
+            return VALUE_SHORT;
+        } else if (type == byte.class || type == Byte.class) {
+            return VALUE_BYTE;
+        } else if (type == boolean.class || type == Boolean.class) {
+            return VALUE_BOOLEAN;
+        } else if (type == String.class) {
+            return VALUE_STRING;
+        } else if (type == BigDecimal.class) {
+            return VALUE_DECIMAL;
+        } else if (type == Timestamp.class || type == java.util.Date.class) {
+            return VALUE_TIMESTAMP;
+        } else if (type == java.sql.Date.class) {
+            return VALUE_DATE;
+        }
+        return VALUE_OBJECT;
+    }
+
+    private static Object readValue(RowCursor cursor, int column, int reader) {
+        Object value;
+        switch (reader) {
+            case VALUE_INT:
+                value = cursor.getInt(column);
+                break;
+            case VALUE_LONG:
+                value = cursor.getLong(column);
+                break;
+            case VALUE_DOUBLE:
+                value = cursor.getDouble(column);
+                break;
+            case VALUE_FLOAT:
+                value = (float) cursor.getDouble(column);
+                break;
+            case VALUE_SHORT:
+                value = (short) cursor.getInt(column);
+                break;
+            case VALUE_BYTE:
+                value = (byte) cursor.getInt(column);
+                break;
+            case VALUE_BOOLEAN:
+                value = cursor.getBoolean(column);
+                break;
+            case VALUE_STRING:
+                return cursor.getString(column);
+            case VALUE_DECIMAL:
+                return cursor.getBigDecimal(column);
+            case VALUE_TIMESTAMP:
+                return cursor.getTimestamp(column);
+            case VALUE_DATE:
+                Timestamp timestamp = cursor.getTimestamp(column);
+                return (timestamp != null)
+                       ? new java.sql.Date(timestamp.getTime()) : null;
+            default:
+                return cursor.getObject(column);
+        }
+        return cursor.wasNull() ? null : value;
+    }
+
+    /**
+     * How the columns of a query are bound to a class: either each column to
+     * a setter or field, or all the columns, in order, to the parameters of a
+     * constructor. Resolved once and shared by every row.
+     */
+    private static final class BeanBinding<T> {
+
+        final int columns;
+        private final Constructor<T> constructor;
+        private final boolean positional;
+        private final int[] readers;
+        private final MethodHandle[] setters;
+        private final boolean[] primitive;
+        private final String[] columnNames;
+        private final String[] properties;
+        private final Class<?>[] valueTypes;
+
+        BeanBinding(Class<T> type, RowCursor cursor) {
+            columns = cursor.getColumnCount();
+            readers = new int[columns];
+            setters = new MethodHandle[columns];
+            primitive = new boolean[columns];
+            columnNames = new String[columns];
+            properties = new String[columns];
+            valueTypes = new Class<?>[columns];
+            for (int i = 0; i < columns; i++) {
+                columnNames[i] = cursor.getColumnName(i + 1);
+            }
+
+            Constructor<T> noArgs = null;
+            Constructor<T> allArgs = null;
+            int matching = 0;
+            for (Constructor<?> c : type.getDeclaredConstructors()) {
+                @SuppressWarnings("unchecked")
+                Constructor<T> ct = (Constructor<T>) c;
+                if (c.getParameterTypes().length == 0) {
+                    noArgs = ct;
+                } else if (c.getParameterTypes().length == columns) {
+                    allArgs = ct;
+                    matching++;
+                }
+            }
+            positional = (noArgs == null);
+            if (positional && matching > 1) {
+                throw new RuntimeException("More than one constructor of "
+                                           + type.getName() + " with "
+                                           + columns + " parameters");
+            }
+            constructor = positional ? allArgs : noArgs;
+            if (constructor == null) {
+                throw new RuntimeException("No constructor of " + type.
+                        getName() + " without parameters or with "
+                                           + columns + " parameters");
+            }
+            constructor.setAccessible(true);
+
+            if (positional) {
+                Class<?>[] types = constructor.getParameterTypes();
+                for (int i = 0; i < columns; i++) {
+                    readers[i] = valueReader(types[i]);
+                    primitive[i] = types[i].isPrimitive();
+                    properties[i] = "parameter " + (i + 1);
+                    valueTypes[i] = MethodType.methodType(types[i]).wrap().
+                            returnType();
+                }
+                return;
+            }
+
+            Map<String, Method> methods = new HashMap<>();
+            Map<String, Field> fields = new HashMap<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.
+                    getSuperclass()) {
+                for (Method m : c.getDeclaredMethods()) {
+                    if (m.getName().startsWith("set") && m.getParameterTypes().
+                            length == 1 && !Modifier.isStatic(m.getModifiers())) {
+                        String name = propertyKey(m.getName().substring(3));
+                        if (!methods.containsKey(name)) {
+                            methods.put(name, m);
+                        }
+                    }
+                }
+                for (Field f : c.getDeclaredFields()) {
+                    int modifiers = f.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(
+                            modifiers)) {
+                        String name = propertyKey(f.getName());
+                        if (!fields.containsKey(name)) {
+                            fields.put(name, f);
+                        }
+                    }
+                }
+            }
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType setter = MethodType.methodType(void.class, Object.class,
+                                                      Object.class);
+            for (int i = 0; i < columns; i++) {
+                String name = propertyKey(cursor.getColumnName(i + 1));
+                Method m = methods.get(name);
+                Field f = fields.get(name);
+                try {
+                    Class<?> propertyType;
+                    MethodHandle handle;
+                    if (m != null) {
+                        m.setAccessible(true);
+                        propertyType = m.getParameterTypes()[0];
+                        handle = lookup.unreflect(m);
+                        properties[i] = m.getName();
+                    } else if (f != null) {
+                        f.setAccessible(true);
+                        propertyType = f.getType();
+                        handle = lookup.unreflectSetter(f);
+                        properties[i] = f.getName();
+                    } else {
+                        continue;
+                    }
+                    setters[i] = handle.asType(setter);
+                    readers[i] = valueReader(propertyType);
+                    primitive[i] = propertyType.isPrimitive();
+                } catch (IllegalAccessException ex) {
+                    throw new RuntimeException("Cannot set " + name + " of "
+                                               + type.getName(), ex);
+                }
+            }
+        }
+
+        /**
+         * @return the name in lower case, without underscores
+         */
+        private static String propertyKey(String name) {
+            return name.replace("_", "").toLowerCase(Locale.ROOT);
+        }
+
+        T map(RowCursor cursor) {
+            try {
+                if (positional) {
+                    Object[] args = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        args[i] = readValue(cursor, i + 1, readers[i]);
+                        if (args[i] == null && primitive[i]) {
+                            args[i] = defaultValue(readers[i]);
+                        }
+                        if (args[i] != null && !valueTypes[i].isInstance(
+                                args[i])) {
+                            throw mismatch(i, args[i], null);
+                        }
+                    }
+                    return constructor.newInstance(args);
+                }
+
+                T bean = constructor.newInstance();
+                for (int i = 0; i < columns; i++) {
+                    if (setters[i] == null) {
+                        continue;
+                    }
+                    Object value = readValue(cursor, i + 1, readers[i]);
+                    if (value != null || !primitive[i]) {
+                        try {
+                            setters[i].invokeExact((Object) bean, value);
+                        } catch (ClassCastException ex) {
+                            throw mismatch(i, value, ex);
+                        }
+                    }
+                }
+                return bean;
+
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new RuntimeException("Failed to map row to "
+                                           + constructor.getDeclaringClass().
+                                                   getName(), ex);
+            }
+        }
+
+        /**
+         * @return an error naming the column and the property it could not be
+         * bound to
+         */
+        private RuntimeException mismatch(int i, Object value,
+                                          Exception cause) {
+            return new RuntimeException("Cannot bind column " + columnNames[i]
+                                        + " to " + properties[i] + " of "
+                                        + constructor.getDeclaringClass().
+                                                getName() + " from a "
+                                        + value.getClass().getName(), cause);
+        }
+
+        private static Object defaultValue(int reader) {
+            switch (reader) {
+                case VALUE_INT:
+                    return 0;
+                case VALUE_LONG:
+                    return 0L;
+                case VALUE_DOUBLE:
+                    return 0d;
+                case VALUE_FLOAT:
+                    return 0f;
+                case VALUE_SHORT:
+                    return (short) 0;
+                case VALUE_BYTE:
+                    return (byte) 0;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Fetches the first row for the given SQL statement and calls the
+     * RowUpdater to manipulate the row. If any changes are done, and if the
+     * RowUpdater returns true the the row is updated.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param updater code that will manipulate the fetched row.
+     * @return the updated row
+     */
+    public static Map<String, Object> fetchForUpdate(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, RowUpdater updater) {
+        return fetchForUpdate(connectionParams, sql, params, null, updater);
+    }
+
+    /**
+     * Fetches the first row for the given SQL statement and calls the
+     * RowUpdater to manipulate the row. If any changes are done, and if the
+     * RowUpdater returns true the the row is updated.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query
+     * @param updater code that will manipulate the fetched row.
+     * @return the updated row
+     */
+    public static Map<String, Object> fetchForUpdate(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, QueryOptions options, RowUpdater updater) {
+
+        if (updater != null) {
+            return queryFirstWithUpdater(connectionParams, sql, params,
+                                         withDefaults(connectionParams,
+                                                      options), updater);
+        }
+        return queryFirst(connectionParams, sql, params, options);
+    }
+
+    /**
+     * Fetches every row for the given SQL statement and calls the RowUpdater
+     * to manipulate each one. The rows the RowUpdater changes, and returns
+     * true for, are updated.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param updater code that will manipulate each fetched row.
+     * @return the number of rows that were changed
+     * @see #updateAll(ConnectionParameters, String, List, QueryOptions,
+     * RowUpdater)
+     */
+    public static long updateAll(ConnectionParameters connectionParams,
+                                 String sql, List<Object> params,
+                                 RowUpdater updater) {
+        return updateAll(connectionParams, sql, params, null, updater);
+    }
+
+    /**
+     * Fetches every row for the given SQL statement and calls the RowUpdater
+     * to manipulate each one. The rows the RowUpdater changes, and returns
+     * true for, are updated.
+     * <p>
+     * The changes are committed once, after the last row, unless
+     * {@link QueryOptions#withCommitInterval(int)} is set. Then they are
+     * committed each time that many rows have changed, provided the driver
+     * can keep the result set open over a commit
+     * ({@link ResultSet#HOLD_CURSORS_OVER_COMMIT}). If it cannot, the changes
+     * are committed once at the end.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param options optional settings for the query, including the commit
+     * interval
+     * @param updater code that will manipulate each fetched row.
+     * @return the number of rows that were changed
+     */
+    public static long updateAll(ConnectionParameters connectionParams,
+                                 String sql, List<Object> params,
+                                 QueryOptions options, RowUpdater updater) {
+        options = withDefaults(connectionParams, options);
+        RowHandler handler = new RowHandler(null, updater, true,
+                                            options.getCommitInterval());
+        executeQuery(connectionParams, sql, params, options, handler, true);
+        return handler.changed;
+    }
+
+    /**
+     * Fetches every row for the given SQL statement and calls the RowUpdater
+     * to manipulate each one, like
+     * {@link #updateAll(ConnectionParameters, String, List, QueryOptions, RowUpdater)},
+     * but without an updatable result set. The query is read with a plain
+     * read-only cursor and the changed columns of each row are written with
+     * <code>update table set ... where key = ?</code>, using the values the
+     * key columns had when the row was fetched. Rows that change the same
+     * columns are sent to the database in batches of
+     * {@link QueryOptions#withBatchSize(int)}.
+     * <p>
+     * Commits are made as for updateAll.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data. It must
+     * select the key columns, and the names of the columns must be the names
+     * of the columns in the table
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param table the name of the table to update. It is added to the SQL as
+     * given, so must not come from untrusted input
+     * @param keyColumns the columns that identify a row of the table. Their
+     * values must not be null
+     * @param options optional settings, including the batch size and commit
+     * interval
+     * @param updater code that will manipulate each fetched row.
+     * @return the number of rows that were changed
+     */
+    public static long updateByKey(ConnectionParameters connectionParams,
+                                   String sql, List<Object> params,
+                                   String table, List<String> keyColumns,
+                                   QueryOptions options, RowUpdater updater) {
+        options = withDefaults(connectionParams, options);
+        if (options.getReadOnly() == null) {
+            options.withReadOnly(false);
+        }
+        KeyUpdateHandler handler = new KeyUpdateHandler(table, keyColumns,
+                                                        updater, true, options);
+        executeQuery(connectionParams, sql, params, options, handler, false);
+        return handler.changed;
+    }
+
+    /**
+     * 
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql
+     * @param listOfParameters
+     * @return the sum of the update counts reported by the driver. Drivers
+     * that do not report the count of each row give
+     * {@link Statement#SUCCESS_NO_INFO} (-2) for it
+     */
+    public static int batchUpdate(ConnectionParameters connectionParams, String sql, Collection<List<Object>> listOfParameters) {
+        return executeBatch(connectionParams, sql, listOfParameters.
+                            iterator(), null).legacyTotal();
+    }
+
+    /**
+     * Runs the SQL once for each list of parameters, sending them to the
+     * database in chunks of {@link QueryOptions#withBatchSize(int)} rows so
+     * that only one chunk is held in memory at a time. The parameters are read
+     * from the iterable as they are needed.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL to run
+     * @param listOfParameters a list of parameters for each execution
+     * @param options optional settings. The batch size (default 100) and the
+     * commit interval are used
+     * @return the update counts of each chunk
+     * @see #batchUpdate(ConnectionParameters, String, Iterator, QueryOptions)
+     */
+    public static BatchResult batchUpdate(ConnectionParameters connectionParams,
+                                          String sql,
+                                          Iterable<? extends List<Object>> listOfParameters,
+                                          QueryOptions options) {
+        return batchUpdate(connectionParams, sql, listOfParameters.iterator(),
+                           options);
+    }
+
+    /**
+     * Runs the SQL once for each list of parameters, sending them to the
+     * database in chunks of {@link QueryOptions#withBatchSize(int)} rows so
+     * that only one chunk is held in memory at a time.
+     * <p>
+     * Without a commit interval all the changes are committed at the end, as
+     * one transaction. With {@link QueryOptions#withCommitInterval(int)} the
+     * changes are committed after each chunk that takes the uncommitted rows
+     * to the interval or more, so if the update fails part way the chunks that
+     * were committed before the failure remain in the database.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL to run
+     * @param listOfParameters the parameters for each execution, read as they
+     * are needed
+     * @param options optional settings. The batch size (default 100) and the
+     * commit interval are used
+     * @return the update counts of each chunk
+     */
+    public static BatchResult batchUpdate(ConnectionParameters connectionParams,
+                                          String sql,
+                                          Iterator<? extends List<Object>> listOfParameters,
+                                          QueryOptions options) {
+        return executeBatch(connectionParams, sql, listOfParameters,
+                            withDefaults(connectionParams, options));
+    }
+
+    private static BatchResult executeBatch(
+            ConnectionParameters connectionParams, String sql,
+            Iterator<? extends List<Object>> listOfParameters,
+            QueryOptions options) {
+        PooledConnection pc = getConnection(connectionParams);
+        boolean committed = false;
+        try {
+            pc.connection.setReadOnly(false);
+            BatchResult result = executeBatch(pc, sql, listOfParameters,
+                                              options, true);
+            committed = true;
+
+            return result;
+
+        } catch (SQLException ex) {
+            Logger.getLogger(SimpleSQL.class.getName()).log(Level.SEVERE, null,
+                                                            ex);
+            throw new RuntimeException("Update failed: " + sql, ex);
+
+        } finally {
+            release(pc, !committed);
+        }
+    }
+
+    /**
+     * Add each list of parameters to the batch, executing the batch every
+     * batch size rows, or once at the end when there are no options.
+     *
+     * @param commit true to commit at the commit interval and at the end
+     */
+    private static BatchResult executeBatch(PooledConnection pc, String sql,
+                                            Iterator<? extends List<Object>> listOfParameters,
+                                            QueryOptions options,
+                                            boolean commit)
+            throws SQLException {
+
+        StatementKey key = new StatementKey(sql, ResultSet.TYPE_FORWARD_ONLY,
+                                            ResultSet.CONCUR_READ_ONLY);
+        PreparedStatement ps = pc.prepare(key, options);
+        ParameterBinder binder = pc.binder(key);
+        boolean reusable = false;
+        try {
+            int batchSize = options == null ? 0 : options.getBatchSize();
+            int commitInterval = options == null ? 0
+                                 : options.getCommitInterval();
+            BatchResult result = new BatchResult();
+            int pending = 0;
+            long uncommitted = 0;
+            while (listOfParameters.hasNext()) {
+                binder.bind(ps, listOfParameters.next());
+                ps.addBatch();
+                pending++;
+
+                if (pending == batchSize) {
+                    result.add(pending, ps.executeBatch());
+                    uncommitted += pending;
+                    pending = 0;
+                    if (commit && commitInterval > 0
+                        && uncommitted >= commitInterval) {
+                        pc.connection.commit();
+                        result.commits++;
+                        uncommitted = 0;
+                    }
+                }
+            }
+            if (pending > 0) {
+                result.add(pending, ps.executeBatch());
+                uncommitted += pending;
+            }
+            if (commit && (uncommitted > 0 || result.commits == 0)) {
+                pc.connection.commit();
+                result.commits++;
+            }
+            reusable = true;
+            return result;
+
+        } finally {
+            pc.release(key, ps, reusable);
+        }
+    }
+
+    /**
+     * The update counts of a chunked batch update
+     *
+     * @see SimpleSQL#batchUpdate(ConnectionParameters, String, Iterator,
+     * QueryOptions)
+     */
+    public static final class BatchResult {
+
+        private final List<Integer> chunkCounts = new ArrayList<>();
+        private long rows = 0;
+        private long total = 0;
+        /**
+         * the sum of the counts as the driver reported them, including
+         * {@link Statement#SUCCESS_NO_INFO}, which the legacy batchUpdate
+         * returns
+         */
+        private long reportedTotal = 0;
+        private int commits = 0;
+
+        private void add(int chunkRows, int[] counts) {
+            int updateCount = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    updateCount += count;
+                }
+                reportedTotal += count;
+            }
+            chunkCounts.add(updateCount);
+            rows += chunkRows;
+            total += updateCount;
+        }
+
+        /**
+         * @return the total the batchUpdate methods taking a Collection have
+         * always returned: the sum of the counts as the driver reported them
+         */
+        private int legacyTotal() {
+            return (int) reportedTotal;
+        }
+
+        /**
+         * @return the count of updated records for each chunk, in order.
+         * Drivers that do not report the count for each row count as zero
+         */
+        public List<Integer> getChunkCounts() {
+            return Collections.unmodifiableList(chunkCounts);
+        }
+
+        /**
+         * @return the total count of updated records. Rows for which the
+         * driver did not report a count ({@link Statement#SUCCESS_NO_INFO})
+         * are not counted
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return the number of lists of parameters that were executed
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the number of times the changes were committed
+         */
+        public int getCommits() {
+            return commits;
+        }
+
+        @Override
+        public String toString() {
+            return "rows=" + rows + ", total=" + total + ", chunks="
+                   + chunkCounts.size() + ", commits=" + commits;
+        }
+    }
+
+    /**
+     * Parses SQL with named parameters, such as
+     * <code>where CUSTOMER_ID = :customerId</code>, into SQL with "?"
+     * placeholders that can be given to any of the query and update methods,
+     * with the values from {@link ParsedSql#bind(Map)}. Names inside quotes
+     * and comments, and PostgreSQL "::" casts, are left as they are. A quote
+     * inside a string must be doubled, as in <code>'it''s'</code>, as quotes
+     * escaped with a backslash (MySQL's <code>'it\'s'</code>) are not
+     * recognised. Recently used parsed SQL is cached, so calling
+     * this for every query does not parse the SQL again.
+     * <pre>
+     * def customer = namedSql("select * from CUSTOMER where ID = :id")
+     * queryFirst(connectionParams, customer.sql, customer.bind(id: 42))
+     * </pre>
+     *
+     * @param sql the SQL with named parameters
+     * @return the parsed SQL
+     */
+    public static ParsedSql namedSql(String sql) {
+        return parseSql(sql);
+    }
+
+    private static final int MAX_PARSED_SQL = 1000;
+
+    /**
+     * The parsed SQL
+     */
+    private static final ParsedSqlCache PARSED_SQL = new ParsedSqlCache(true);
+
+    /**
+     * The SQL parsed for "?" placeholders only
+     */
+    private static final ParsedSqlCache PLACEHOLDER_SQL = new ParsedSqlCache(
+            false);
+
+    static ParsedSql parseSql(String sql) {
+        return PARSED_SQL.get(sql);
+    }
+
+    /**
+     * @return the SQL split at its "?" placeholders, with any ":name" left
+     * as it is
+     */
+    private static ParsedSql parsePlaceholders(String sql) {
+        return PLACEHOLDER_SQL.get(sql);
+    }
+
+    /**
+     * Parsed SQL, keyed by the SQL. Lookups do not lock, so they never wait
+     * for each other. Each lookup marks the entry as used, and when there
+     * are more than {@link #MAX_PARSED_SQL} entries a sweep drops those that
+     * have not been used since the last sweep (second-chance eviction).
+     */
+    private static final class ParsedSqlCache {
+
+        private final ConcurrentHashMap<String, Entry> entries
+                = new ConcurrentHashMap<>();
+        private final boolean named;
+
+        ParsedSqlCache(boolean named) {
+            this.named = named;
+        }
+
+        ParsedSql get(String sql) {
+            Entry entry = entries.get(sql);
+            if (entry != null) {
+                if (!entry.used) {
+                    entry.used = true;
+                }
+                return entry.parsed;
+            }
+            ParsedSql parsed = new ParsedSql(sql, named);
+            entries.put(sql, new Entry(parsed));
+            if (entries.size() > MAX_PARSED_SQL) {
+                sweep();
+            }
+            return parsed;
+        }
+
+        /**
+         * Drops the entries that have not been used since the last sweep,
+         * and marks the others as unused, until the cache is three quarters
+         * full, so that a sweep is not needed for every new SQL
+         */
+        private synchronized void sweep() {
+            int target = MAX_PARSED_SQL * 3 / 4;
+            while (entries.size() > target) {
+                Iterator<Entry> i = entries.values().iterator();
+                while (i.hasNext() && entries.size() > target) {
+                    Entry entry = i.next();
+                    if (entry.used) {
+                        entry.used = false;
+                    } else {
+                        i.remove();
+                    }
+                }
+            }
+        }
+
+        private static final class Entry {
+
+            final ParsedSql parsed;
+            volatile boolean used = false;
+
+            Entry(ParsedSql parsed) {
+                this.parsed = parsed;
+            }
+        }
+    }
+
+    /**
+     * SQL that has been split at its parameters, which are either "?"
+     * placeholders or names starting with ":". Quotes inside strings must be
+     * doubled rather than escaped with a backslash.
+     *
+     * @see SimpleSQL#namedSql(String)
+     */
+    public static final class ParsedSql {
+
+        private final String original;
+        private final String sql;
+        /**
+         * the SQL before, between and after the parameters
+         */
+        private final String[] pieces;
+        /**
+         * the name of each parameter, or null for a "?"
+         */
+        private final String[] names;
+
+        /**
+         * @param named true to treat ":name" as a parameter, false for "?"
+         * placeholders only
+         */
+        private ParsedSql(String original, boolean named) {
+            this.original = original;
+            List<String> pieceList = new ArrayList<>();
+            List<String> nameList = new ArrayList<>();
+            int start = 0;
+            int i = 0;
+            int n = original.length();
+            while (i < n) {
+                char ch = original.charAt(i);
+                if (ch == '\'' || ch == '"' || ch == '`') {
+                    int end = original.indexOf(ch, i + 1);
+                    i = (end < 0) ? n : end + 1;
+                } else if (ch == '-' && original.startsWith("--", i)) {
+                    int end = original.indexOf('\n', i);
+                    i = (end < 0) ? n : end + 1;
+                } else if (ch == '/' && original.startsWith("/*", i)) {
+                    int end = original.indexOf("*/", i + 2);
+                    i = (end < 0) ? n : end + 2;
+                } else if (ch == ':' && original.startsWith("::", i)) {
+                    i += 2;
+                } else if (named && ch == ':' && i + 1 < n && Character.
+                        isJavaIdentifierStart(original.charAt(i + 1))) {
+                    int end = i + 2;
+                    while (end < n && Character.isJavaIdentifierPart(original.
+                            charAt(end))) {
+                        end++;
+                    }
+                    pieceList.add(original.substring(start, i));
+                    nameList.add(original.substring(i + 1, end));
+                    start = i = end;
+                } else if (ch == '?') {
+                    pieceList.add(original.substring(start, i));
+                    nameList.add(null);
+                    start = ++i;
+                } else {
+                    i++;
+                }
+            }
+            pieceList.add(original.substring(start));
+            pieces = pieceList.toArray(new String[pieceList.size()]);
+            names = nameList.toArray(new String[nameList.size()]);
+            sql = nameList.isEmpty() ? original : join(null);
+        }
+
+        /**
+         * @param placeholders the placeholders for each parameter, or null
+         * for "?" for all of them
+         * @return the SQL with the placeholders in place of the parameters
+         */
+        private String join(String[] placeholders) {
+            StringBuilder sb = new StringBuilder(original.length());
+            for (int i = 0; i < names.length; i++) {
+                sb.append(pieces[i]).append(placeholders != null
+                                            ? placeholders[i] : "?");
+            }
+            return sb.append(pieces[names.length]).toString();
+        }
+
+        /**
+         * @return the SQL with "?" in place of each named parameter
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return the names of the parameters, in the order they appear in
+         * the SQL. A name that is used more than once appears each time
+         */
+        public List<String> getParameterNames() {
+            return Collections.unmodifiableList(Arrays.asList(names));
+        }
+
+        /**
+         * @param values the value of each named parameter
+         * @return the values in the order of the "?" placeholders in
+         * {@link #getSql()}
+         */
+        public List<Object> bind(Map<String, ?> values) {
+            List<Object> params = new ArrayList<>(names.length);
+            for (String name : names) {
+                if (name == null) {
+                    throw new RuntimeException(
+                            "Cannot mix ? and named parameters in SQL: "
+                            + original);
+                }
+                if (values == null || !values.containsKey(name)) {
+                    throw new RuntimeException("No value for :" + name
+                                               + " in SQL: " + original);
+                }
+                params.add(values.get(name));
+            }
+            return params;
+        }
+
+        @Override
+        public String toString() {
+            return sql;
+        }
+    }
+
+    /**
+     * A parameter with the SQL type to bind it as. Use this for parameters
+     * that may be null, so that the driver is told the type of the null, or
+     * to choose the type rather than leave it to the driver.
+     *
+     * @param value the value of the parameter, which may be null
+     * @param sqlType the type from {@link Types}
+     * @return the parameter, to put in the list of parameters
+     */
+    public static TypedParameter param(Object value, int sqlType) {
+        return new TypedParameter(value, sqlType);
+    }
+
+    /**
+     * A parameter value and the SQL type to bind it as
+     *
+     * @see SimpleSQL#param(Object, int)
+     */
+    public static final class TypedParameter {
+
+        private final Object value;
+        private final int sqlType;
+
+        private TypedParameter(Object value, int sqlType) {
+            this.value = value;
+            this.sqlType = sqlType;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * @return the type from {@link Types}
+         */
+        public int getSqlType() {
+            return sqlType;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Create a new, empty set of query options. Adjust the options with the
+     * "with" methods. Options that are not set take the defaults given to
+     * {@link #setDefaultQueryOptions(ConnectionParameters, QueryOptions)} or,
+     * failing that, the defaults of the JDBC driver.
+     *
+     * @return query options
+     */
+    public static QueryOptions queryOptions() {
+        return new QueryOptions();
+    }
+
+    /**
+     * Set the query options used for every query made with connection
+     * parameters that have the same values (driver class, connection string,
+     * user, password and properties) as those given. Options passed to a
+     * query override these defaults.
+     *
+     * @param connectionParams the connection parameters
+     * @param options the default options, or null to remove the defaults
+     */
+    public static void setDefaultQueryOptions(
+            ConnectionParameters connectionParams, QueryOptions options) {
+        ConnectionKey key = new ConnectionKey(connectionParams);
+        if (options == null) {
+            DEFAULT_OPTIONS.remove(key);
+        } else {
+            DEFAULT_OPTIONS.put(key, new QueryOptions(options));
+        }
+    }
+
+    /**
+     * Settings for how a query is run. Settings that are not given are left
+     * to the JDBC driver.
+     */
+    public static class QueryOptions {
+
+        private Integer fetchSize = null;
+        private Integer maxRows = null;
+        private Integer queryTimeout = null;
+        private Boolean readOnly = null;
+        private Integer transactionIsolation = null;
+        private Integer resultSetType = null;
+        private Boolean cancelOnEarlyStop = null;
+        private Long cancelTimeout = null;
+        private QueryStatistics statistics = null;
+        private Integer prefetchBatchSize = null;
+        private Integer prefetchQueueSize = null;
+        private Integer batchSize = null;
+        private Integer commitInterval = null;
+        private Boolean narrowNumbers = null;
+        private Integer inListLimit = null;
+        private Long cacheTtl = null;
+
+        public QueryOptions() {
+        }
+
+        public QueryOptions(QueryOptions other) {
+            fetchSize = other.fetchSize;
+            maxRows = other.maxRows;
+            queryTimeout = other.queryTimeout;
+            readOnly = other.readOnly;
+            transactionIsolation = other.transactionIsolation;
+            resultSetType = other.resultSetType;
+            cancelOnEarlyStop = other.cancelOnEarlyStop;
+            cancelTimeout = other.cancelTimeout;
+            statistics = other.statistics;
+            prefetchBatchSize = other.prefetchBatchSize;
+            prefetchQueueSize = other.prefetchQueueSize;
+            batchSize = other.batchSize;
+            commitInterval = other.commitInterval;
+            narrowNumbers = other.narrowNumbers;
+            inListLimit = other.inListLimit;
+            cacheTtl = other.cacheTtl;
+        }
+
+        /**
+         * @param rows the number of rows the driver should fetch from the
+         * database in each round trip
+         * @return these options
+         * @see Statement#setFetchSize(int)
+         */
+        public QueryOptions withFetchSize(int rows) {
+            fetchSize = rows;
+            return this;
+        }
+
+        /**
+         * @param rows the maximum number of rows to fetch. Zero for no limit
+         * @return these options
+         * @see Statement#setMaxRows(int)
+         */
+        public QueryOptions withMaxRows(int rows) {
+            maxRows = rows;
+            return this;
+        }
+
+        /**
+         * @param seconds the time after which the query is cancelled. Zero for
+         * no limit
+         * @return these options
+         * @see Statement#setQueryTimeout(int)
+         */
+        public QueryOptions withQueryTimeout(int seconds) {
+            queryTimeout = seconds;
+            return this;
+        }
+
+        /**
+         * @param readOnly whether the connection is read-only while the query
+         * runs. By default it is read-only unless rows are being updated
+         * @return these options
+         * @see Connection#setReadOnly(boolean)
+         */
+        public QueryOptions withReadOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+            return this;
+        }
+
+        /**
+         * @param level one of the Connection.TRANSACTION_ constants. By
+         * default TRANSACTION_READ_COMMITTED is used when rows are being
+         * updated
+         * @return these options
+         * @see Connection#setTransactionIsolation(int)
+         */
+        public QueryOptions withTransactionIsolation(int level) {
+            transactionIsolation = level;
+            return this;
+        }
+
+        /**
+         * @param type one of the ResultSet.TYPE_ constants. Default is
+         * ResultSet.TYPE_FORWARD_ONLY
+         * @return these options
+         */
+        public QueryOptions withResultSetType(int type) {
+            resultSetType = type;
+            return this;
+        }
+
+        /**
+         * @param narrow true to return the values of decimal columns that have
+         * no fraction, and a precision of up to 18 digits, as Integer (up to 9
+         * digits) or Long instead of BigDecimal. Which columns are narrowed is
+         * decided once per query from the ResultSetMetaData. Default is false
+         * @return these options
+         */
+        public QueryOptions withNarrowNumbers(boolean narrow) {
+            narrowNumbers = narrow;
+            return this;
+        }
+
+        /**
+         * @param cancel true to cancel the statement when the processor stops
+         * the query before all the rows have been fetched, so that closing the
+         * query does not wait for the rest of the rows. Default is false.
+         * Note that on some databases cancelling a statement aborts the
+         * current transaction, which matters inside a {@link Session}
+         * @return these options
+         * @see Statement#cancel()
+         */
+        public QueryOptions withCancelOnEarlyStop(boolean cancel) {
+            cancelOnEarlyStop = cancel;
+            return this;
+        }
+
+        /**
+         * @param millis if greater than zero the statement is cancelled on a
+         * separate thread and the query stops waiting for the cancel after
+         * this many milliseconds. Use this for drivers where cancelling can
+         * block. Default is 0: cancel on the calling thread
+         * @return these options
+         */
+        public QueryOptions withCancelTimeout(long millis) {
+            cancelTimeout = millis;
+            return this;
+        }
+
+        /**
+         * @param statistics an object to add the statistics of the query to.
+         * The same object can be given to many queries to total them
+         * @return these options
+         */
+        public QueryOptions withStatistics(QueryStatistics statistics) {
+            this.statistics = statistics;
+            return this;
+        }
+
+        /**
+         * Fetch rows on a separate thread while the rows already fetched are
+         * being processed, so that the database and the processing are both
+         * kept busy. Only applies to the RowProcessor queries, and not when
+         * rows are being updated. The processor must not use the same
+         * {@link Session} while the query is running.
+         *
+         * @param rows the number of rows fetched ahead and handed over at a
+         * time. Zero, the default, fetches and processes on one thread
+         * @return these options
+         */
+        public QueryOptions withPrefetchBatchSize(int rows) {
+            prefetchBatchSize = rows;
+            return this;
+        }
+
+        /**
+         * @param batches the maximum number of batches fetched ahead of the
+         * processing. Default is 4
+         * @return these options
+         */
+        public QueryOptions withPrefetchQueueSize(int batches) {
+            prefetchQueueSize = batches;
+            return this;
+        }
+
+        /**
+         * @param rows the number of rows in each batch, for both queries and
+         * updates. Default is 100
+         * @return these options
+         * @see SimpleSQL#queryInBatches(ConnectionParameters, String, List,
+         * QueryOptions, BatchRowProcessor)
+         * @see SimpleSQL#batchUpdate(ConnectionParameters, String, Iterator,
+         * QueryOptions)
+         */
+        public QueryOptions withBatchSize(int rows) {
+            batchSize = rows;
+            return this;
+        }
+
+        /**
+         * @param rows for a batch update, commit each time this many rows
+         * have been executed since the last commit. Default is to commit once
+         * at the end
+         * @return these options
+         * @see SimpleSQL#batchUpdate(ConnectionParameters, String, Iterator,
+         * QueryOptions)
+         */
+        public QueryOptions withCommitInterval(int rows) {
+            commitInterval = rows;
+            return this;
+        }
+
+        /**
+         * @param values the most values a collection parameter can be
+         * expanded to in one query. Longer collections are split and the
+         * query is run once for each part, with the rows of the parts passed
+         * on in turn. That is only the same as one query for a plain
+         * <code>in (?)</code> condition: it gives the wrong rows for
+         * <code>not in</code>, and aggregates, <code>distinct</code> and
+         * <code>order by</code> apply to each part separately. Default is
+         * 1000, the limit of an IN list in Oracle
+         * @return these options
+         */
+        public QueryOptions withInListLimit(int values) {
+            inListLimit = values;
+            return this;
+        }
+
+        /**
+         * @param millis keep the rows returned by queryFirst or queryAsList
+         * in the result cache for this long. Has no effect unless the cache
+         * has been given a size
+         * @return these options
+         * @see SimpleSQL#setResultCacheSize(long)
+         */
+        public QueryOptions withCacheTtl(long millis) {
+            cacheTtl = millis;
+            return this;
+        }
+
+        public Integer getFetchSize() {
+            return fetchSize;
+        }
+
+        public Integer getMaxRows() {
+            return maxRows;
+        }
+
+        public Integer getQueryTimeout() {
+            return queryTimeout;
+        }
+
+        public Boolean getReadOnly() {
+            return readOnly;
+        }
+
+        public Integer getTransactionIsolation() {
+            return transactionIsolation;
+        }
+
+        public Integer getResultSetType() {
+            return resultSetType;
+        }
+
+        public boolean isNarrowNumbers() {
+            return Boolean.TRUE.equals(narrowNumbers);
+        }
+
+        public boolean isCancelOnEarlyStop() {
+            return Boolean.TRUE.equals(cancelOnEarlyStop);
+        }
+
+        public long getCancelTimeout() {
+            return (cancelTimeout != null) ? cancelTimeout : 0;
+        }
+
+        public QueryStatistics getStatistics() {
+            return statistics;
+        }
+
+        public int getBatchSize() {
+            if (batchSize != null && batchSize > 0) {
+                return batchSize;
+            }
+            return (fetchSize != null && fetchSize > 0) ? fetchSize : 100;
+        }
+
+        public int getCommitInterval() {
+            return commitInterval == null ? 0 : commitInterval;
+        }
+
+        public long getCacheTtl() {
+            return (cacheTtl != null) ? cacheTtl : 0;
+        }
+
+        public int getInListLimit() {
+            return (inListLimit != null && inListLimit > 0) ? inListLimit
+                   : 1000;
+        }
+
+        public int getPrefetchBatchSize() {
+            return (prefetchBatchSize != null) ? prefetchBatchSize : 0;
+        }
+
+        public int getPrefetchQueueSize() {
+            return (prefetchQueueSize != null && prefetchQueueSize > 0)
+                   ? prefetchQueueSize : 4;
+        }
+
+        /**
+         * Sets each option that is not set here from the defaults
+         */
+        void inherit(QueryOptions defaults) {
+            if (fetchSize == null) {
+                fetchSize = defaults.fetchSize;
+            }
+            if (maxRows == null) {
+                maxRows = defaults.maxRows;
+            }
+            if (queryTimeout == null) {
+                queryTimeout = defaults.queryTimeout;
+            }
+            if (readOnly == null) {
+                readOnly = defaults.readOnly;
+            }
+            if (transactionIsolation == null) {
+                transactionIsolation = defaults.transactionIsolation;
+            }
+            if (resultSetType == null) {
+                resultSetType = defaults.resultSetType;
+            }
+            if (cancelOnEarlyStop == null) {
+                cancelOnEarlyStop = defaults.cancelOnEarlyStop;
+            }
+            if (cancelTimeout == null) {
+                cancelTimeout = defaults.cancelTimeout;
+            }
+            if (statistics == null) {
+                statistics = defaults.statistics;
+            }
+            if (prefetchBatchSize == null) {
+                prefetchBatchSize = defaults.prefetchBatchSize;
+            }
+            if (prefetchQueueSize == null) {
+                prefetchQueueSize = defaults.prefetchQueueSize;
+            }
+            if (batchSize == null) {
+                batchSize = defaults.batchSize;
+            }
+            if (commitInterval == null) {
+                commitInterval = defaults.commitInterval;
+            }
+            if (narrowNumbers == null) {
+                narrowNumbers = defaults.narrowNumbers;
+            }
+            if (inListLimit == null) {
+                inListLimit = defaults.inListLimit;
+            }
+            if (cacheTtl == null) {
+                cacheTtl = defaults.cacheTtl;
+            }
+        }
+    }
+
+    /**
+     * Counts and timings collected from the queries it is given to with
+     * {@link QueryOptions#withStatistics(QueryStatistics)}. The values are
+     * totals across all those queries.
+     */
+    public static class QueryStatistics {
+
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong cancels = new AtomicLong();
+        final AtomicLong cancelNanos = new AtomicLong();
+        final AtomicLong closeNanos = new AtomicLong();
+        final AtomicLong readerWaitNanos = new AtomicLong();
+        final AtomicLong processorWaitNanos = new AtomicLong();
+
+        /**
+         * @return the number of rows fetched
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * @return the number of statements cancelled because the processor
+         * stopped before the last row
+         */
+        public long getCancels() {
+            return cancels.get();
+        }
+
+        /**
+         * @return the time spent cancelling statements, in nanoseconds
+         */
+        public long getCancelNanos() {
+            return cancelNanos.get();
+        }
+
+        /**
+         * @return the time spent closing result sets and statements, in
+         * nanoseconds
+         */
+        public long getCloseNanos() {
+            return closeNanos.get();
+        }
+
+        /**
+         * @return when prefetching, the time the fetching thread spent waiting
+         * for the processing to catch up, in nanoseconds
+         */
+        public long getReaderWaitNanos() {
+            return readerWaitNanos.get();
+        }
+
+        /**
+         * @return when prefetching, the time the processing spent waiting for
+         * rows to be fetched, in nanoseconds
+         */
+        public long getProcessorWaitNanos() {
+            return processorWaitNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "rows=" + getRows() + ", cancels=" + getCancels()
+                   + ", cancelMillis=" + getCancelNanos() / 1000000
+                   + ", closeMillis=" + getCloseNanos() / 1000000
+                   + ", readerWaitMillis=" + getReaderWaitNanos() / 1000000
+                   + ", processorWaitMillis=" + getProcessorWaitNanos()
+                                                / 1000000;
+        }
+    }
+
+    private static final Map<ConnectionKey, QueryOptions> DEFAULT_OPTIONS
+            = new ConcurrentHashMap<>();
+
+    /**
+     * @return a copy of the options with the defaults for the connection
+     * parameters applied. Never null
+     */
+    private static QueryOptions withDefaults(
+            ConnectionParameters connectionParams, QueryOptions options) {
+        QueryOptions defaults = DEFAULT_OPTIONS.isEmpty() ? null
+                                : DEFAULT_OPTIONS.get(new ConnectionKey(
+                                        connectionParams));
+        return merge(options, defaults);
+    }
+
+    /**
+     * @return a copy of the options with the defaults applied. Never null
+     */
+    private static QueryOptions merge(QueryOptions options,
+                                      QueryOptions defaults) {
+        QueryOptions merged = (options != null) ? new QueryOptions(options)
+                              : new QueryOptions();
+        if (defaults != null) {
+            merged.inherit(defaults);
+        }
+        return merged;
+    }
+
+    /**
+     * Create a new set of export options, for the defaults. Adjust the options
+     * with the "with" methods.
+     *
+     * @return export options
+     */
+    public static ExportOptions exportOptions() {
+        return new ExportOptions();
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and writes the rows as
+     * JSON objects, without building a map for each row. The output is the
+     * same as <code>toJson(queryAsList(...))</code> would give, except that
+     * binary values are written as Base64 strings. With
+     * {@link ExportOptions#withNewlineDelimited(boolean)} each row is written
+     * on its own line, without the enclosing array.
+     * <p>
+     * How each column is written is chosen once, from the ResultSetMetaData.
+     * The writer is flushed but not closed.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param writer where to write the JSON
+     * @param options optional settings for the export
+     * @return the number of rows and characters written
+     */
+    public static ExportStatistics queryToJson(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, Writer writer, ExportOptions options) {
+        CountingWriter counter = new CountingWriter(writer);
+        return export(connectionParams, sql, params, options,
+                      new BufferedWriter(counter, EXPORT_BUFFER_SIZE), counter);
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and writes the rows as
+     * JSON objects, in the charset of the options (UTF-8 by default).
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param out where to write the JSON. It is flushed but not closed
+     * @param options optional settings for the export
+     * @return the number of rows and bytes written
+     * @see #queryToJson(ConnectionParameters, String, List, Writer,
+     * ExportOptions)
+     */
+    public static ExportStatistics queryToJson(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, OutputStream out, ExportOptions options) {
+        if (options == null) {
+            options = new ExportOptions();
+        }
+        CountingOutputStream counter = new CountingOutputStream(out);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                counter, Charset.forName(options.getCharset())),
+                                           EXPORT_BUFFER_SIZE);
+        return export(connectionParams, sql, params, options, writer, counter);
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and writes the rows as
+     * delimited text, such as CSV. The delimiter, quoting, header, null value,
+     * line separator, date format, charset and gzip compression are set in
+     * the options. Fields are quoted when they contain the delimiter, the
+     * quote or a line break, and quotes in a field are doubled.
+     * <p>
+     * How each column is formatted is chosen once, from the
+     * ResultSetMetaData, and the text is encoded into a buffer that is written
+     * to the stream through a channel. The stream is flushed but not closed.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param out where to write the text
+     * @param options optional settings for the export
+     * @return the number of rows and bytes written. When compressing, the
+     * compressed bytes
+     */
+    public static ExportStatistics queryToDelimited(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, OutputStream out, ExportOptions options) {
+        return exportDelimited(connectionParams, sql, params, out, null,
+                               options);
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and writes the rows as
+     * delimited text to a channel, such as a FileChannel. The channel is not
+     * closed.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param channel where to write the text
+     * @param options optional settings for the export
+     * @return the number of rows and bytes written
+     * @see #queryToDelimited(ConnectionParameters, String, List, OutputStream,
+     * ExportOptions)
+     */
+    public static ExportStatistics queryToDelimited(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, WritableByteChannel channel,
+            ExportOptions options) {
+        return exportDelimited(connectionParams, sql, params, null, channel,
+                               options);
+    }
+
+    private static ExportStatistics exportDelimited(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, OutputStream out, WritableByteChannel channel,
+            ExportOptions options) {
+        if (options == null) {
+            options = new ExportOptions();
+        }
+        long start = System.nanoTime();
+        CountingOutputStream compressed = null;
+        GZIPOutputStream gzip = null;
+        try {
+            if (options.isGzip()) {
+                compressed = new CountingOutputStream(
+                        (out != null) ? out : Channels.newOutputStream(channel));
+                gzip = new GZIPOutputStream(compressed, EXPORT_BUFFER_SIZE);
+                channel = Channels.newChannel(gzip);
+            } else if (channel == null) {
+                channel = Channels.newChannel(out);
+            }
+            ChannelWriter writer = new ChannelWriter(channel, Charset.forName(
+                                                     options.getCharset()));
+            DelimitedHandler handler = new DelimitedHandler(writer, options);
+            executeQuery(connectionParams, sql, params,
+                         options.getQueryOptions(), handler, false);
+
+            writer.close();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            if (out != null) {
+                out.flush();
+            }
+            return new ExportStatistics(handler.rows, (compressed != null)
+                                                      ? compressed.count()
+                                                      : writer.count(),
+                                        System.nanoTime() - start);
+
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+        }
+    }
+
+    /**
+     * Makes a connection to the database, run the SQL and writes the rows in
+     * a compact binary, column by column, format that can be read back with
+     * {@link #readColumnar(File)}.
+     * <p>
+     * The rows are written in chunks of {@link ExportOptions#withChunkSize(int)}
+     * rows, so only one chunk is held in memory. Within a chunk each column is
+     * written as a bitmap of its nulls followed by its values: whole numbers,
+     * dates and times (as milliseconds since 1970) as longs, floating point
+     * numbers as doubles, strings and decimals as a dictionary of the distinct
+     * values and an index into it for each row, and binary values as they
+     * are. Other types are written as strings. The file ends with the offset
+     * of each chunk.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @param sql the SQL SELECT query to run to fetch the data.
+     * @param params an optional list of parameters to substitute for "?" in the
+     * SQL
+     * @param out where to write the data. It is flushed but not closed
+     * @param options optional settings for the export
+     * @return the number of rows and bytes written
+     */
+    public static ExportStatistics queryToColumnar(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, OutputStream out, ExportOptions options) {
+        if (options == null) {
+            options = new ExportOptions();
+        }
+        long start = System.nanoTime();
+        CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(out, EXPORT_BUFFER_SIZE));
+        ColumnarHandler handler = new ColumnarHandler(counter, options.
+                                                      getChunkSize());
+        executeQuery(connectionParams, sql, params, options.getQueryOptions(),
+                     handler, false);
+        try {
+            counter.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+        }
+        return new ExportStatistics(handler.rows, counter.count(),
+                                    System.nanoTime() - start);
+    }
+
+    /**
+     * Opens a file written by
+     * {@link #queryToColumnar(ConnectionParameters, String, List, OutputStream, ExportOptions)}
+     * for reading. Close it when done.
+     *
+     * @param file the file to read
+     * @return the reader for the file
+     */
+    public static ColumnarFile readColumnar(File file) {
+        try {
+            return new ColumnarFile(file);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to read columnar file " + file.
+                    getAbsolutePath(), ex);
+        }
+    }
+
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The format of dates and times in JSON, and in delimited text unless
+     * another is given
+     */
+    private static final String EXPORT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    private static ExportStatistics export(
+            ConnectionParameters connectionParams, String sql,
+            List<Object> params, ExportOptions options, Writer writer,
+            Counter counter) {
+        if (options == null) {
+            options = new ExportOptions();
+        }
+        long start = System.nanoTime();
+        JsonHandler handler = new JsonHandler(writer, options);
+        executeQuery(connectionParams, sql, params, options.getQueryOptions(),
+                     handler, false);
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+        }
+        return new ExportStatistics(handler.rows, counter.count(),
+                                    System.nanoTime() - start);
+    }
+
+    /**
+     * How the values of a column are read from the ResultSet, chosen once
+     * from the type of the column in the ResultSetMetaData
+     */
+    private static final int KIND_OBJECT = 0;
+    private static final int KIND_BOOLEAN = 1;
+    private static final int KIND_LONG = 2;
+    private static final int KIND_DOUBLE = 3;
+    private static final int KIND_DECIMAL = 4;
+    private static final int KIND_STRING = 5;
+    private static final int KIND_DATE = 6;
+    private static final int KIND_TIME = 7;
+    private static final int KIND_TIMESTAMP = 8;
+    private static final int KIND_BINARY = 9;
+
+    private static int columnKind(ResultSetMetaData md, int column)
+            throws SQLException {
+        switch (md.getColumnType(column)) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return KIND_BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return KIND_LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return KIND_DOUBLE;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                int precision = md.getPrecision(column);
+                return (md.getScale(column) == 0 && precision > 0
+                        && precision <= 18) ? KIND_LONG : KIND_DECIMAL;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return KIND_STRING;
+            case Types.DATE:
+                return KIND_DATE;
+            case Types.TIME:
+                return KIND_TIME;
+            case Types.TIMESTAMP:
+                return KIND_TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return KIND_BINARY;
+            default:
+                return KIND_OBJECT;
+        }
+    }
+
+    /**
+     * The types of the columns of the binary columnar format
+     */
+    private static final int TYPE_BOOLEAN = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_DECIMAL = 4;
+    private static final int TYPE_STRING = 5;
+    private static final int TYPE_TIMESTAMP = 6;
+    private static final int TYPE_BINARY = 7;
+
+    private static final int COLUMNAR_MAGIC = 0x53514C43;
+    private static final int COLUMNAR_VERSION = 1;
+
+    /**
+     * The values of one column, appended a row at a time, with a bitmap of
+     * the rows that are null. The values are kept in primitive arrays where
+     * the type of column allows, and the arrays grow as needed.
+     */
+    private abstract static class ColumnBuffer {
+
+        final String name;
+        final int kind;
+        int size = 0;
+        long[] nulls = new long[1];
+
+        ColumnBuffer(String name, int kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        /**
+         * @return a buffer for a column that is only held in memory
+         */
+        static ColumnBuffer create(String name, int kind) {
+            switch (kind) {
+                case KIND_DECIMAL:
+                    return new NumberBuffer(name, kind);
+                case KIND_OBJECT:
+                    return new ObjectBuffer(name, kind);
+                default:
+                    return WritableColumnBuffer.create(name, kind);
+            }
+        }
+
+        /**
+         * Appends the value of the column in the current row
+         */
+        void read(ResultSet rs, int column) throws SQLException {
+            if (size >> 6 == nulls.length) {
+                nulls = Arrays.copyOf(nulls, nulls.length * 2);
+            }
+            if (!readValue(rs, column, size)) {
+                nulls[size >> 6] |= 1L << size;
+            }
+            size++;
+        }
+
+        /**
+         * @return false if the value is null
+         */
+        abstract boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException;
+
+        boolean isNull(int i) {
+            return (nulls[i >> 6] & 1L << i) != 0;
+        }
+
+        abstract Object get(int i);
+
+        void clear() {
+            Arrays.fill(nulls, 0);
+            size = 0;
+        }
+
+        /**
+         * Shrinks the arrays to the number of values, once no more will be
+         * added
+         */
+        void trim() {
+            nulls = Arrays.copyOf(nulls, Math.max(1, (size + 63) >> 6));
+        }
+
+        /**
+         * @return the class of the values returned by {@link #get(int)}
+         */
+        abstract Class<?> valueClass();
+    }
+
+    /**
+     * A column buffer that can also be written in the binary columnar format
+     */
+    private abstract static class WritableColumnBuffer extends ColumnBuffer {
+
+        final int type;
+
+        WritableColumnBuffer(String name, int type, int kind) {
+            super(name, kind);
+            this.type = type;
+        }
+
+        /**
+         * @return a buffer for a column to be written in the binary columnar
+         * format
+         */
+        static WritableColumnBuffer create(String name, int kind) {
+            switch (kind) {
+                case KIND_BOOLEAN:
+                    return new LongBuffer(name, TYPE_BOOLEAN, kind);
+                case KIND_LONG:
+                    return new LongBuffer(name, TYPE_LONG, kind);
+                case KIND_DOUBLE:
+                    return new DoubleBuffer(name, kind);
+                case KIND_DECIMAL:
+                    return new DictionaryBuffer(name, TYPE_DECIMAL, kind);
+                case KIND_DATE:
+                case KIND_TIME:
+                case KIND_TIMESTAMP:
+                    return new LongBuffer(name, TYPE_TIMESTAMP, kind);
+                case KIND_BINARY:
+                    return new BinaryBuffer(name, kind);
+                default:
+                    return new DictionaryBuffer(name, TYPE_STRING, kind);
+            }
+        }
+
+        /**
+         * @return the size of the column when written by {@link #write}
+         */
+        long encodedSize() {
+            return (size + 7) / 8 + valuesSize();
+        }
+
+        abstract long valuesSize();
+
+        void write(DataOutputStream out) throws IOException {
+            for (int b = 0; b < (size + 7) / 8; b++) {
+                out.write((int) (nulls[b >> 3] >>> ((b & 7) << 3)));
+            }
+            writeValues(out);
+        }
+
+        abstract void writeValues(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Booleans (as 0 or 1), whole numbers, and dates and times (as
+     * milliseconds since 1970)
+     */
+    private static final class LongBuffer extends WritableColumnBuffer {
+
+        long[] values = new long[16];
+
+        LongBuffer(String name, int type, int kind) {
+            super(name, type, kind);
+        }
+
+        @Override
+        boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException {
+            if (i == values.length) {
+                values = Arrays.copyOf(values, i * 2);
+            }
+            java.util.Date date;
+            switch (kind) {
+                case KIND_BOOLEAN:
+                    values[i] = rs.getBoolean(column) ? 1 : 0;
+                    return !rs.wasNull();
+                case KIND_DATE:
+                    date = rs.getDate(column);
+                    break;
+                case KIND_TIME:
+                    date = rs.getTime(column);
+                    break;
+                case KIND_TIMESTAMP:
+                    date = rs.getTimestamp(column);
+                    break;
+                default:
+                    values[i] = rs.getLong(column);
+                    return !rs.wasNull();
+            }
+            if (date == null) {
+                return false;
+            }
+            values[i] = date.getTime();
+            return true;
+        }
+
+        @Override
+        Object get(int i) {
+            if (isNull(i)) {
+                return null;
+            }
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    return values[i] != 0;
+                case TYPE_TIMESTAMP:
+                    return new Timestamp(values[i]);
+                default:
+                    return values[i];
+            }
+        }
+
+        @Override
+        void trim() {
+            super.trim();
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        Class<?> valueClass() {
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    return Boolean.class;
+                case TYPE_TIMESTAMP:
+                    return Timestamp.class;
+                default:
+                    return Long.class;
+            }
+        }
+
+        @Override
+        long valuesSize() {
+            return (type == TYPE_BOOLEAN) ? size : size * 8L;
+        }
+
+        @Override
+        void writeValues(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                if (type == TYPE_BOOLEAN) {
+                    out.write((int) values[i]);
+                } else {
+                    out.writeLong(values[i]);
+                }
+            }
+        }
+    }
+
+    private static final class DoubleBuffer extends WritableColumnBuffer {
+
+        double[] values = new double[16];
+
+        DoubleBuffer(String name, int kind) {
+            super(name, TYPE_DOUBLE, kind);
+        }
+
+        @Override
+        boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException {
+            if (i == values.length) {
+                values = Arrays.copyOf(values, i * 2);
+            }
+            values[i] = rs.getDouble(column);
+            return !rs.wasNull();
+        }
+
+        @Override
+        Object get(int i) {
+            return isNull(i) ? null : values[i];
+        }
+
+        @Override
+        void trim() {
+            super.trim();
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        Class<?> valueClass() {
+            return Double.class;
+        }
+
+        @Override
+        long valuesSize() {
+            return size * 8L;
+        }
+
+        @Override
+        void writeValues(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeDouble(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Strings, and decimals as strings, stored once each in a dictionary with
+     * the index of the value for each row
+     */
+    private static final class DictionaryBuffer extends WritableColumnBuffer {
+
+        final Map<String, Integer> codes = new HashMap<>();
+        final List<String> dictionary = new ArrayList<>();
+        int[] indices = new int[16];
+        private byte[][] encoded = null;
+
+        DictionaryBuffer(String name, int type, int kind) {
+            super(name, type, kind);
+        }
+
+        @Override
+        boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException {
+            if (i == indices.length) {
+                indices = Arrays.copyOf(indices, i * 2);
+            }
+            String value;
+            if (kind == KIND_DECIMAL) {
+                BigDecimal decimal = rs.getBigDecimal(column);
+                value = (decimal != null) ? decimal.toString() : null;
+            } else if (kind == KIND_STRING) {
+                value = rs.getString(column);
+            } else {
+                Object object = rs.getObject(column);
+                value = (object != null) ? object.toString() : null;
+            }
+            if (value == null) {
+                indices[i] = -1;
+                return false;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                codes.put(value, code);
+                dictionary.add(value);
+            }
+            indices[i] = code;
+            return true;
+        }
+
+        @Override
+        Object get(int i) {
+            int code = indices[i];
+            if (code < 0) {
+                return null;
+            }
+            String value = dictionary.get(code);
+            return (type == TYPE_DECIMAL) ? new BigDecimal(value) : value;
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            codes.clear();
+            dictionary.clear();
+            encoded = null;
+        }
+
+        @Override
+        void trim() {
+            super.trim();
+            indices = Arrays.copyOf(indices, size);
+            codes.clear();
+        }
+
+        @Override
+        Class<?> valueClass() {
+            return (type == TYPE_DECIMAL) ? BigDecimal.class : String.class;
+        }
+
+        @Override
+        long valuesSize() {
+            encoded = new byte[dictionary.size()][];
+            long length = 4 + size * 4L;
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = dictionary.get(i).getBytes(StandardCharsets.UTF_8);
+                length += 4 + encoded[i].length;
+            }
+            return length;
+        }
+
+        @Override
+        void writeValues(DataOutputStream out) throws IOException {
+            out.writeInt(encoded.length);
+            for (byte[] value : encoded) {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeInt(indices[i]);
+            }
+        }
+    }
+
+    private static final class BinaryBuffer extends WritableColumnBuffer {
+
+        byte[][] values = new byte[16][];
+
+        BinaryBuffer(String name, int kind) {
+            super(name, TYPE_BINARY, kind);
+        }
+
+        @Override
+        boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException {
+            if (i == values.length) {
+                values = Arrays.copyOf(values, i * 2);
+            }
+            values[i] = rs.getBytes(column);
+            return values[i] != null;
+        }
+
+        @Override
+        Object get(int i) {
+            return values[i];
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(values, 0, size, null);
+            super.clear();
+        }
+
+        @Override
+        void trim() {
+            super.trim();
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        Class<?> valueClass() {
+            return byte[].class;
+        }
+
+        @Override
+        long valuesSize() {
+            long length = size * 4L;
+            for (int i = 0; i < size; i++) {
+                if (values[i] != null) {
+                    length += values[i].length;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        void writeValues(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(values[i].length);
+                    out.write(values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decimals, held as longs until a value that is not a whole number that
+     * fits in a long is read, then as doubles. Only held in memory.
+     */
+    private static final class NumberBuffer extends ColumnBuffer {
+
+        long[] longs = new long[16];
+        double[] doubles = null;
+
+        NumberBuffer(String name, int kind) {
+            super(name, kind);
+        }
+
+        @Override
+        boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException {
+            if (doubles != null && i == doubles.length) {
+                doubles = Arrays.copyOf(doubles, i * 2);
+            } else if (longs != null && i == longs.length) {
+                longs = Arrays.copyOf(longs, i * 2);
+            }
+            BigDecimal value = rs.getBigDecimal(column);
+            if (value == null) {
+                return false;
+            }
+            if (doubles == null) {
+                try {
+                    longs[i] = value.longValueExact();
+                    return true;
+                } catch (ArithmeticException ex) {
+                    doubles = new double[longs.length];
+                    for (int j = 0; j < i; j++) {
+                        doubles[j] = longs[j];
+                    }
+                    longs = null;
+                }
+            }
+            doubles[i] = value.doubleValue();
+            return true;
+        }
+
+        @Override
+        Object get(int i) {
+            if (isNull(i)) {
+                return null;
+            }
+            return (doubles != null) ? (Object) doubles[i] : (Object) longs[i];
+        }
+
+        @Override
+        void trim() {
+            super.trim();
+            if (doubles != null) {
+                doubles = Arrays.copyOf(doubles, size);
+            } else {
+                longs = Arrays.copyOf(longs, size);
+            }
+        }
+
+        @Override
+        Class<?> valueClass() {
+            return (doubles != null) ? Double.class : Long.class;
+        }
+    }
+
+    /**
+     * Values of other types, as the driver returns them. Only held in memory.
+     */
+    private static final class ObjectBuffer extends ColumnBuffer {
+
+        Object[] values = new Object[16];
+
+        ObjectBuffer(String name, int kind) {
+            super(name, kind);
+        }
+
+        @Override
+        boolean readValue(ResultSet rs, int column, int i)
+                throws SQLException {
+            if (i == values.length) {
+                values = Arrays.copyOf(values, i * 2);
+            }
+            values[i] = rs.getObject(column);
+            return values[i] != null;
+        }
+
+        @Override
+        Object get(int i) {
+            return values[i];
+        }
+
+        @Override
+        void trim() {
+            super.trim();
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        Class<?> valueClass() {
+            return Object.class;
+        }
+    }
+
+    /**
+     * Reads every row into column buffers for a ColumnarResult
+     */
+    private static final class ColumnsHandler extends ResultHandler {
+
+        private ColumnBuffer[] buffers;
+        private int rows = 0;
+
+        @Override
+        void start(ResultSet rs, ColumnIndex index) throws Exception {
+            ResultSetMetaData md = rs.getMetaData();
+            buffers = new ColumnBuffer[md.getColumnCount()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ColumnBuffer.create(md.getColumnName(i + 1),
+                                                 columnKind(md, i + 1));
+            }
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex index)
+                throws Exception {
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i].read(rs, i + 1);
+            }
+            rows++;
+            return true;
+        }
+
+        ColumnarResult result() {
+            for (ColumnBuffer buffer : buffers) {
+                buffer.trim();
+            }
+            return new ColumnarResult(buffers, rows);
+        }
+    }
+
+    /**
+     * Writes the rows in the binary columnar format: a header with the name
+     * and type of each column, the chunks of rows and a footer with the offset
+     * and row count of each chunk.
+     * <p>
+     * Each chunk starts with its row count and the offset, from the start of
+     * the chunk, of each column.
+     */
+    private static final class ColumnarHandler extends ResultHandler {
+
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final int chunkSize;
+        private final List<Long> chunkOffsets = new ArrayList<>();
+        private final List<Integer> chunkRows = new ArrayList<>();
+        private WritableColumnBuffer[] buffers;
+        long rows = 0;
+
+        ColumnarHandler(CountingOutputStream counter, int chunkSize) {
+            this.counter = counter;
+            this.out = new DataOutputStream(counter);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        void start(ResultSet rs, ColumnIndex index) throws Exception {
+            ResultSetMetaData md = rs.getMetaData();
+            buffers = new WritableColumnBuffer[md.getColumnCount()];
+            out.writeInt(COLUMNAR_MAGIC);
+            out.writeInt(COLUMNAR_VERSION);
+            out.writeInt(buffers.length);
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = WritableColumnBuffer.create(
+                        md.getColumnName(i + 1), columnKind(md, i + 1));
+                writeString(buffers[i].name);
+                out.write(buffers[i].type);
+            }
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex index)
+                throws Exception {
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i].read(rs, i + 1);
+            }
+            rows++;
+            if (buffers.length > 0 && buffers[0].size >= chunkSize) {
+                writeChunk();
+            }
+            return true;
+        }
+
+        @Override
+        void finish(Connection c) throws IOException {
+            if (buffers.length > 0 && buffers[0].size > 0) {
+                writeChunk();
+            }
+            long footer = counter.count();
+            out.writeInt(chunkOffsets.size());
+            for (int i = 0; i < chunkOffsets.size(); i++) {
+                out.writeLong(chunkOffsets.get(i));
+                out.writeInt(chunkRows.get(i));
+            }
+            out.writeLong(footer);
+            out.writeInt(COLUMNAR_MAGIC);
+        }
+
+        private void writeChunk() throws IOException {
+            chunkOffsets.add(counter.count());
+            chunkRows.add(buffers[0].size);
+            out.writeInt(buffers[0].size);
+            long offset = 4 + 8L * buffers.length;
+            for (WritableColumnBuffer buffer : buffers) {
+                out.writeLong(offset);
+                offset += buffer.encodedSize();
+            }
+            for (WritableColumnBuffer buffer : buffers) {
+                buffer.write(out);
+                buffer.clear();
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Writes each row as a JSON object, reading each column with the getter
+     * for its kind
+     */
+    private static final class JsonHandler extends ResultHandler {
+
+        private final Writer out;
+        private final boolean newlineDelimited;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+                EXPORT_DATE_FORMAT);
+        private int[] kinds;
+        private int[] columns;
+        private String[] keys;
+        long rows = 0;
+
+        JsonHandler(Writer out, ExportOptions options) {
+            this.out = out;
+            this.newlineDelimited = options.isNewlineDelimited();
+            dateFormat.setTimeZone(TimeZone.getTimeZone(options.getTimeZone()));
+        }
+
+        @Override
+        void start(ResultSet rs, ColumnIndex index) throws Exception {
+            ResultSetMetaData md = rs.getMetaData();
+            columns = index.columns;
+            kinds = new int[columns.length];
+            keys = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                kinds[i] = columnKind(md, columns[i]);
+                StringWriter key = new StringWriter();
+                if (i > 0) {
+                    key.write(',');
+                }
+                writeJsonString(index.names[i], key);
+                key.write(':');
+                keys[i] = key.toString();
+            }
+            if (!newlineDelimited) {
+                out.write('[');
+            }
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex index)
+                throws Exception {
+            if (!newlineDelimited && rows > 0) {
+                out.write(',');
+            }
+            out.write('{');
+            for (int i = 0; i < columns.length; i++) {
+                out.write(keys[i]);
+                writeColumn(rs, i);
+            }
+            out.write('}');
+            if (newlineDelimited) {
+                out.write('\n');
+            }
+            rows++;
+            return true;
+        }
+
+        @Override
+        void finish(Connection c) throws IOException {
+            if (!newlineDelimited) {
+                out.write(']');
+            }
+        }
+
+        private void writeColumn(ResultSet rs, int i)
+                throws IOException, SQLException {
+            int column = columns[i];
+            switch (kinds[i]) {
+                case KIND_BOOLEAN:
+                    boolean b = rs.getBoolean(column);
+                    out.write(rs.wasNull() ? "null" : b ? "true" : "false");
+                    break;
+                case KIND_LONG:
+                    long l = rs.getLong(column);
+                    out.write(rs.wasNull() ? "null" : Long.toString(l));
+                    break;
+                case KIND_DOUBLE:
+                    double d = rs.getDouble(column);
+                    out.write(rs.wasNull() || Double.isNaN(d)
+                              || Double.isInfinite(d) ? "null"
+                              : Double.toString(d));
+                    break;
+                case KIND_DECIMAL:
+                    writeValue(rs.getBigDecimal(column));
+                    break;
+                case KIND_STRING:
+                    writeValue(rs.getString(column));
+                    break;
+                case KIND_DATE:
+                    writeValue(rs.getDate(column));
+                    break;
+                case KIND_TIME:
+                    writeValue(rs.getTime(column));
+                    break;
+                case KIND_TIMESTAMP:
+                    writeValue(rs.getTimestamp(column));
+                    break;
+                case KIND_BINARY:
+                    writeValue(rs.getBytes(column));
+                    break;
+                default:
+                    writeValue(rs.getObject(column));
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.write("null");
+            } else if (value instanceof String) {
+                writeJsonString((String) value, out);
+            } else if (value instanceof Double || value instanceof Float) {
+                double d = ((Number) value).doubleValue();
+                out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null"
+                          : value.toString());
+            } else if (value instanceof Number || value instanceof Boolean) {
+                out.write(value.toString());
+            } else if (value instanceof java.util.Date) {
+                out.write('"');
+                out.write(dateFormat.format((java.util.Date) value));
+                out.write('"');
+            } else if (value instanceof byte[]) {
+                out.write('"');
+                writeBase64((byte[]) value, out);
+                out.write('"');
+            } else {
+                writeJsonString(value.toString(), out);
+            }
+        }
+    }
+
+    /**
+     * Writes each row as a line of delimited text, formatting each column
+     * according to its kind
+     */
+    private static final class DelimitedHandler extends ResultHandler {
+
+        private final Writer out;
+        private final String delimiter;
+        private final char quote;
+        private final boolean quoteAll;
+        private final boolean header;
+        private final String nullValue;
+        private final String lineSeparator;
+        private final SimpleDateFormat dateFormat;
+        private int[] kinds;
+        long rows = 0;
+
+        DelimitedHandler(Writer out, ExportOptions options) {
+            this.out = out;
+            this.delimiter = options.getDelimiter();
+            this.quote = options.getQuote();
+            this.quoteAll = options.isQuoteAll();
+            this.header = options.isHeader();
+            this.nullValue = options.getNullValue();
+            this.lineSeparator = options.getLineSeparator();
+            this.dateFormat = new SimpleDateFormat(
+                    (options.getDateFormat() != null) ? options.getDateFormat()
+                    : EXPORT_DATE_FORMAT);
+            dateFormat.setTimeZone(TimeZone.getTimeZone(options.getTimeZone()));
+        }
+
+        @Override
+        void start(ResultSet rs, ColumnIndex index) throws Exception {
+            ResultSetMetaData md = rs.getMetaData();
+            kinds = new int[md.getColumnCount()];
+            for (int i = 0; i < kinds.length; i++) {
+                kinds[i] = columnKind(md, i + 1);
+            }
+            if (header) {
+                for (int i = 0; i < kinds.length; i++) {
+                    if (i > 0) {
+                        out.write(delimiter);
+                    }
+                    writeField(md.getColumnName(i + 1));
+                }
+                out.write(lineSeparator);
+            }
+        }
+
+        @Override
+        boolean row(Connection c, ResultSet rs, ColumnIndex index)
+                throws Exception {
+            for (int i = 0; i < kinds.length; i++) {
+                if (i > 0) {
+                    out.write(delimiter);
+                }
+                writeColumn(rs, i + 1, kinds[i]);
+            }
+            out.write(lineSeparator);
+            rows++;
+            return true;
+        }
+
+        private void writeColumn(ResultSet rs, int column, int kind)
+                throws IOException, SQLException {
+            switch (kind) {
+                case KIND_BOOLEAN:
+                    boolean b = rs.getBoolean(column);
+                    writeNumber(rs.wasNull() ? null : b ? "true" : "false");
+                    break;
+                case KIND_LONG:
+                    long l = rs.getLong(column);
+                    writeNumber(rs.wasNull() ? null : Long.toString(l));
+                    break;
+                case KIND_DOUBLE:
+                    double d = rs.getDouble(column);
+                    writeNumber(rs.wasNull() ? null : Double.toString(d));
+                    break;
+                case KIND_DECIMAL:
+                    BigDecimal decimal = rs.getBigDecimal(column);
+                    writeNumber((decimal != null) ? decimal.toPlainString()
+                                : null);
+                    break;
+                case KIND_STRING:
+                    writeField(rs.getString(column));
+                    break;
+                case KIND_DATE:
+                    writeDate(rs.getDate(column));
+                    break;
+                case KIND_TIME:
+                    writeDate(rs.getTime(column));
+                    break;
+                case KIND_TIMESTAMP:
+                    writeDate(rs.getTimestamp(column));
+                    break;
+                case KIND_BINARY:
+                    writeBytes(rs.getBytes(column));
+                    break;
+                default:
+                    Object value = rs.getObject(column);
+                    if (value instanceof BigDecimal) {
+                        writeNumber(((BigDecimal) value).toPlainString());
+                    } else if (value instanceof java.util.Date) {
+                        writeDate((java.util.Date) value);
+                    } else if (value instanceof byte[]) {
+                        writeBytes((byte[]) value);
+                    } else {
+                        writeField((value != null) ? value.toString() : null);
+                    }
+            }
+        }
+
+        private void writeNumber(String value) throws IOException {
+            if (value == null) {
+                out.write(nullValue);
+            } else if (quoteAll) {
+                writeField(value);
+            } else {
+                out.write(value);
+            }
+        }
+
+        private void writeDate(java.util.Date value) throws IOException {
+            writeField((value != null) ? dateFormat.format(value) : null);
+        }
+
+        private void writeBytes(byte[] value) throws IOException {
+            if (value == null) {
+                out.write(nullValue);
+                return;
+            }
+            if (quoteAll) {
+                out.write(quote);
+            }
+            writeBase64(value, out);
+            if (quoteAll) {
+                out.write(quote);
+            }
+        }
+
+        private void writeField(String value) throws IOException {
+            if (value == null) {
+                out.write(nullValue);
+            } else if (quoteAll || value.indexOf(quote) >= 0 || value.indexOf(
+                    '\n') >= 0 || value.indexOf('\r') >= 0 || value.indexOf(
+                    delimiter) >= 0) {
+                out.write(quote);
+                int start = 0;
+                for (int i = value.indexOf(quote); i >= 0;
+                     i = value.indexOf(quote, i + 1)) {
+                    out.write(value, start, i + 1 - start);
+                    out.write(quote);
+                    start = i + 1;
+                }
+                out.write(value, start, value.length() - start);
+                out.write(quote);
+            } else {
+                out.write(value);
+            }
+        }
+    }
+
+    private static void writeJsonString(String s, Writer out)
+            throws IOException {
+        out.write('"');
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char ch = s.charAt(i);
+            if (ch >= 0x20 && ch != '"' && ch != '\\') {
+                continue;
+            }
+            out.write(s, start, i - start);
+            start = i + 1;
+            switch (ch) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    out.write("\\u00");
+                    out.write(HEX[ch >> 4]);
+                    out.write(HEX[ch & 0xF]);
+            }
+        }
+        out.write(s, start, length - start);
+        out.write('"');
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final char[] BASE64 = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+                                          + "abcdefghijklmnopqrstuvwxyz"
+                                          + "0123456789+/").toCharArray();
+
+    private static void writeBase64(byte[] bytes, Writer out)
+            throws IOException {
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8
+                    | (bytes[i + 2] & 0xFF);
+            out.write(BASE64[n >> 18]);
+            out.write(BASE64[n >> 12 & 0x3F]);
+            out.write(BASE64[n >> 6 & 0x3F]);
+            out.write(BASE64[n & 0x3F]);
+        }
+        int remaining = bytes.length - i;
+        if (remaining > 0) {
+            int n = (bytes[i] & 0xFF) << 16;
+            if (remaining == 2) {
+                n |= (bytes[i + 1] & 0xFF) << 8;
+            }
+            out.write(BASE64[n >> 18]);
+            out.write(BASE64[n >> 12 & 0x3F]);
+            out.write(remaining == 2 ? BASE64[n >> 6 & 0x3F] : '=');
+            out.write('=');
+        }
+    }
+
+    /**
+     * Encodes characters into a buffer in the given charset and writes the
+     * buffer to a channel when it is full. Characters that cannot be encoded
+     * are replaced. The channel is not closed.
+     */
+    private static final class ChannelWriter extends Writer implements Counter {
+
+        private final WritableByteChannel channel;
+        private final CharsetEncoder encoder;
+        private final CharBuffer chars = CharBuffer.allocate(EXPORT_BUFFER_SIZE);
+        private final ByteBuffer bytes;
+        private long count = 0;
+        private boolean closed = false;
+
+        ChannelWriter(WritableByteChannel channel, Charset charset) {
+            this.channel = channel;
+            this.encoder = charset.newEncoder().
+                    onMalformedInput(CodingErrorAction.REPLACE).
+                    onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.bytes = ByteBuffer.allocate((int) (EXPORT_BUFFER_SIZE
+                                                    * encoder.maxBytesPerChar()));
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            ensureOpen();
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            chars.put((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!chars.hasRemaining()) {
+                    encode(false);
+                }
+                int n = Math.min(len, chars.remaining());
+                chars.put(cbuf, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!chars.hasRemaining()) {
+                    encode(false);
+                }
+                int n = Math.min(len, chars.remaining());
+                chars.put(str, off, off + n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Encodes everything written so far and writes it to the channel
+         */
+        @Override
+        public void flush() throws IOException {
+            if (!closed) {
+                encode(false);
+            }
+        }
+
+        /**
+         * Ends the encoding and writes the rest to the channel. The channel
+         * is not closed
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                finish();
+            }
+        }
+
+        private void finish() throws IOException {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Writer closed");
+            }
+        }
+
+        private void encode(boolean endOfInput) throws IOException {
+            chars.flip();
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    break;
+                }
+            }
+            chars.compact();
+            if (!endOfInput) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                count += channel.write(bytes);
+            }
+            bytes.clear();
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+    }
+
+    /**
+     * Something that counts what is written through it
+     */
+    private interface Counter {
+
+        long count();
+    }
+
+    private static final class CountingWriter extends FilterWriter
+            implements Counter {
+
+        private long count = 0;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream
+            implements Counter {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+    }
+
+    /**
+     * Settings for the export methods, such as
+     * {@link SimpleSQL#queryToJson(ConnectionParameters, String, List, Writer, ExportOptions)}
+     */
+    public static class ExportOptions {
+
+        private boolean newlineDelimited = false;
+        private String charset = "UTF-8";
+        private QueryOptions queryOptions = null;
+        private String delimiter = ",";
+        private char quote = '"';
+        private boolean quoteAll = false;
+        private boolean header = true;
+        private String nullValue = "";
+        private String lineSeparator = "\n";
+        private String dateFormat = null;
+        private String timeZone = "GMT";
+        private boolean gzip = false;
+        private int chunkSize = 65536;
+
+        /**
+         * @param newlineDelimited true to write each JSON row on its own line
+         * (NDJSON) instead of as one array. Default is false
+         * @return these options
+         */
+        public ExportOptions withNewlineDelimited(boolean newlineDelimited) {
+            this.newlineDelimited = newlineDelimited;
+            return this;
+        }
+
+        /**
+         * @param charset the name of the charset to write to an OutputStream
+         * in. Default is UTF-8
+         * @return these options
+         */
+        public ExportOptions withCharset(String charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /**
+         * @param queryOptions settings for the query that fetches the rows
+         * @return these options
+         */
+        public ExportOptions withQueryOptions(QueryOptions queryOptions) {
+            this.queryOptions = queryOptions;
+            return this;
+        }
+
+        /**
+         * @param delimiter the text between the fields of delimited text.
+         * Default is ","
+         * @return these options
+         */
+        public ExportOptions withDelimiter(String delimiter) {
+            this.delimiter = delimiter;
+            return this;
+        }
+
+        /**
+         * @param quote the character to quote fields of delimited text with.
+         * Default is '"'
+         * @return these options
+         */
+        public ExportOptions withQuote(char quote) {
+            this.quote = quote;
+            return this;
+        }
+
+        /**
+         * @param quoteAll true to quote every field that is not null, false to
+         * quote only the fields that need it. Default is false
+         * @return these options
+         */
+        public ExportOptions withQuoteAll(boolean quoteAll) {
+            this.quoteAll = quoteAll;
+            return this;
+        }
+
+        /**
+         * @param header true to write the column names as the first line of
+         * delimited text. Default is true
+         * @return these options
+         */
+        public ExportOptions withHeader(boolean header) {
+            this.header = header;
+            return this;
+        }
+
+        /**
+         * @param nullValue the text to write for null values in delimited
+         * text. Default is an empty field
+         * @return these options
+         */
+        public ExportOptions withNullValue(String nullValue) {
+            this.nullValue = nullValue;
+            return this;
+        }
+
+        /**
+         * @param lineSeparator the text at the end of each line of delimited
+         * text. Default is "\n"
+         * @return these options
+         */
+        public ExportOptions withLineSeparator(String lineSeparator) {
+            this.lineSeparator = lineSeparator;
+            return this;
+        }
+
+        /**
+         * @param dateFormat a SimpleDateFormat pattern for dates and times in
+         * delimited text. Default is the format used in JSON, such as
+         * "2019-01-31T12:00:00+0000"
+         * @return these options
+         */
+        public ExportOptions withDateFormat(String dateFormat) {
+            this.dateFormat = dateFormat;
+            return this;
+        }
+
+        /**
+         * @param timeZone the ID of the time zone to write dates and times
+         * in, in JSON and delimited text. Default is GMT
+         * @return these options
+         * @see TimeZone#getTimeZone(String)
+         */
+        public ExportOptions withTimeZone(String timeZone) {
+            this.timeZone = timeZone;
+            return this;
+        }
+
+        /**
+         * @param gzip true to compress delimited text with gzip as it is
+         * written. Default is false
+         * @return these options
+         */
+        public ExportOptions withGzip(boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        /**
+         * @param rows the number of rows in each chunk of the binary columnar
+         * format. Default is 65536
+         * @return these options
+         */
+        public ExportOptions withChunkSize(int rows) {
+            this.chunkSize = rows;
+            return this;
+        }
+
+        public boolean isNewlineDelimited() {
+            return newlineDelimited;
+        }
+
+        public String getDelimiter() {
+            return delimiter;
+        }
+
+        public char getQuote() {
+            return quote;
+        }
+
+        public boolean isQuoteAll() {
+            return quoteAll;
+        }
+
+        public boolean isHeader() {
+            return header;
+        }
+
+        public String getNullValue() {
+            return nullValue;
+        }
+
+        public String getLineSeparator() {
+            return lineSeparator;
+        }
+
+        public String getDateFormat() {
+            return dateFormat;
+        }
+
+        public String getTimeZone() {
+            return timeZone;
+        }
+
+        public boolean isGzip() {
+            return gzip;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public String getCharset() {
+            return charset;
+        }
+
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+    }
+
+    /**
+     * How much an export wrote, and how quickly
+     */
+    public static final class ExportStatistics {
+
+        private final long rows;
+        private final long bytes;
+        private final long nanos;
+
+        private ExportStatistics(long rows, long bytes, long nanos) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the number of rows written
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the number of bytes written, or characters when writing to
+         * a Writer
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the time the export took, including the query, in
+         * nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getRowsPerSecond() {
+            return (nanos > 0) ? rows * 1e9 / nanos : 0;
+        }
+
+        public double getBytesPerSecond() {
+            return (nanos > 0) ? bytes * 1e9 / nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "rows=" + rows + ", bytes=" + bytes + ", millis="
+                   + nanos / 1000000 + ", rowsPerSecond="
+                   + Math.round(getRowsPerSecond()) + ", bytesPerSecond="
+                   + Math.round(getBytesPerSecond());
+        }
+    }
+
+    /**
+     * The rows of a query held column by column, returned by
+     * {@link SimpleSQL#queryAsColumns(ConnectionParameters, String, List)}.
+     * Rows are numbered from 0 and columns, as in JDBC, from 1.
+     */
+    public static final class ColumnarResult {
+
+        private final ColumnBuffer[] columns;
+        private final int rowCount;
+
+        private ColumnarResult(ColumnBuffer[] columns, int rowCount) {
+            this.columns = columns;
+            this.rowCount = rowCount;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        /**
+         * @param column the column, from 1
+         * @return the name of the column
+         */
+        public String getColumnName(int column) {
+            return columns[column - 1].name;
+        }
+
+        /**
+         * @param name the name of a column
+         * @return the column, from 1, or -1 if there is no column with that
+         * name
+         */
+        public int findColumn(String name) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].name.equals(name)) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @param column the column, from 1
+         * @return the class of the values of the column: Long, Double,
+         * Boolean, Timestamp, String, BigDecimal, byte[] or Object
+         */
+        public Class<?> getColumnClass(int column) {
+            return columns[column - 1].valueClass();
+        }
+
+        public boolean isNull(int row, int column) {
+            return columns[column - 1].isNull(row);
+        }
+
+        /**
+         * @return the value as a long, or 0 if it is null. Dates and times are
+         * in milliseconds since 1970
+         */
+        public long getLong(int row, int column) {
+            ColumnBuffer buffer = columns[column - 1];
+            if (buffer instanceof LongBuffer) {
+                return ((LongBuffer) buffer).values[row];
+            }
+            if (buffer instanceof NumberBuffer
+                && ((NumberBuffer) buffer).longs != null) {
+                return ((NumberBuffer) buffer).longs[row];
+            }
+            Object value = buffer.get(row);
+            return (value != null) ? ((Number) value).longValue() : 0;
+        }
+
+        /**
+         * @return the value as a double, or 0 if it is null
+         */
+        public double getDouble(int row, int column) {
+            ColumnBuffer buffer = columns[column - 1];
+            if (buffer instanceof DoubleBuffer) {
+                return ((DoubleBuffer) buffer).values[row];
+            }
+            if (buffer instanceof NumberBuffer
+                && ((NumberBuffer) buffer).doubles != null) {
+                return ((NumberBuffer) buffer).doubles[row];
+            }
+            if (buffer instanceof LongBuffer) {
+                return ((LongBuffer) buffer).values[row];
+            }
+            Object value = buffer.get(row);
+            return (value != null) ? ((Number) value).doubleValue() : 0;
+        }
+
+        public String getString(int row, int column) {
+            Object value = columns[column - 1].get(row);
+            return (value != null) ? value.toString() : null;
+        }
+
+        public Object getObject(int row, int column) {
+            return columns[column - 1].get(row);
+        }
+
+        /**
+         * @return the values of a Long, Boolean or Timestamp column, as held.
+         * Null values are 0. Do not modify the array
+         */
+        public long[] getLongs(int column) {
+            ColumnBuffer buffer = columns[column - 1];
+            if (buffer instanceof LongBuffer) {
+                return ((LongBuffer) buffer).values;
+            }
+            if (buffer instanceof NumberBuffer
+                && ((NumberBuffer) buffer).longs != null) {
+                return ((NumberBuffer) buffer).longs;
+            }
+            throw new IllegalStateException("Column " + buffer.name
+                                            + " is not held as longs");
+        }
+
+        /**
+         * @return the values of a Double column, as held. Null values are 0.
+         * Do not modify the array
+         */
+        public double[] getDoubles(int column) {
+            ColumnBuffer buffer = columns[column - 1];
+            if (buffer instanceof DoubleBuffer) {
+                return ((DoubleBuffer) buffer).values;
+            }
+            if (buffer instanceof NumberBuffer
+                && ((NumberBuffer) buffer).doubles != null) {
+                return ((NumberBuffer) buffer).doubles;
+            }
+            throw new IllegalStateException("Column " + buffer.name
+                                            + " is not held as doubles");
+        }
+
+        /**
+         * @return the row as a map of column name to value
+         */
+        public Map<String, Object> getRow(int row) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (ColumnBuffer column : columns) {
+                map.put(column.name, column.get(row));
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Reads a file in the binary columnar format written by
+     * {@link SimpleSQL#queryToColumnar(ConnectionParameters, String, List, OutputStream, ExportOptions)}.
+     * <p>
+     * Only the footer and the header are read when the file is opened. Each
+     * chunk is memory mapped when a row in it is first read, and values are
+     * read straight from the mapped chunk; the dictionary of a string column
+     * is decoded the first time it is needed. Rows are numbered from 0 and
+     * columns, as in JDBC, from 1.
+     * <p>
+     * A ColumnarFile is not safe for use by more than one thread at a time.
+     */
+    public static final class ColumnarFile implements Closeable {
+
+        private final FileChannel channel;
+        private final String[] names;
+        private final int[] types;
+        private final long[] chunkOffsets;
+        private final long[] chunkStarts;
+        private final long rowCount;
+        private final long footer;
+        private final ByteBuffer[] chunks;
+        private final String[][][] dictionaries;
+        private final int[][] indexOffsets;
+        private final int[][][] binaryOffsets;
+
+        private ColumnarFile(File file) throws IOException {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                long length = channel.size();
+                ByteBuffer trailer = map(length - 12, 12);
+                footer = trailer.getLong();
+                if (trailer.getInt() != COLUMNAR_MAGIC) {
+                    throw new IOException("Not a columnar file");
+                }
+
+                ByteBuffer buffer = map(footer, length - 12 - footer);
+                int chunkCount = buffer.getInt();
+                chunkOffsets = new long[chunkCount];
+                chunkStarts = new long[chunkCount + 1];
+                for (int i = 0; i < chunkCount; i++) {
+                    chunkOffsets[i] = buffer.getLong();
+                    chunkStarts[i + 1] = chunkStarts[i] + buffer.getInt();
+                }
+                rowCount = chunkStarts[chunkCount];
+
+                buffer = map(0, (chunkCount > 0) ? chunkOffsets[0] : footer);
+                if (buffer.getInt() != COLUMNAR_MAGIC) {
+                    throw new IOException("Not a columnar file");
+                }
+                if (buffer.getInt() != COLUMNAR_VERSION) {
+                    throw new IOException("Unsupported columnar file version");
+                }
+                names = new String[buffer.getInt()];
+                types = new int[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = readString(buffer);
+                    types[i] = buffer.get();
+                }
+
+                chunks = new ByteBuffer[chunkCount];
+                dictionaries = new String[chunkCount][][];
+                indexOffsets = new int[chunkCount][];
+                binaryOffsets = new int[chunkCount][][];
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        private ByteBuffer map(long position, long size) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the total number of rows
+         */
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        public int getColumnCount() {
+            return names.length;
+        }
+
+        /**
+         * @param column the column, from 1
+         * @return the name of the column
+         */
+        public String getColumnName(int column) {
+            return names[column - 1];
+        }
+
+        /**
+         * @param name the name of a column
+         * @return the column, from 1, or -1 if there is no column with that
+         * name
+         */
+        public int findColumn(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        public boolean isNull(long row, int column) {
+            int chunk = chunkOf(row);
+            ByteBuffer data = chunk(chunk);
+            int i = (int) (row - chunkStarts[chunk]);
+            int start = (int) data.getLong(4 + 8 * (column - 1));
+            return (data.get(start + (i >> 3)) & 1 << (i & 7)) != 0;
+        }
+
+        /**
+         * @return the value of a boolean, whole number, date or time column,
+         * or 0 if it is null. Dates and times are in milliseconds since 1970
+         */
+        public long getLong(long row, int column) {
+            Object value = getObject(row, column);
+            if (value instanceof java.util.Date) {
+                return ((java.util.Date) value).getTime();
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value ? 1 : 0;
+            }
+            return (value != null) ? ((Number) value).longValue() : 0;
+        }
+
+        /**
+         * @return the value of a numeric column, or 0 if it is null
+         */
+        public double getDouble(long row, int column) {
+            Object value = getObject(row, column);
+            return (value != null) ? ((Number) value).doubleValue() : 0;
+        }
+
+        public String getString(long row, int column) {
+            Object value = getObject(row, column);
+            return (value != null) ? value.toString() : null;
+        }
+
+        /**
+         * @return the value as a Boolean, Long, Double, BigDecimal, String,
+         * Timestamp or byte array, or null
+         */
+        public Object getObject(long row, int column) {
+            int chunk = chunkOf(row);
+            ByteBuffer data = chunk(chunk);
+            int i = (int) (row - chunkStarts[chunk]);
+            int rows = (int) (chunkStarts[chunk + 1] - chunkStarts[chunk]);
+            int start = (int) data.getLong(4 + 8 * (column - 1));
+            if ((data.get(start + (i >> 3)) & 1 << (i & 7)) != 0) {
+                return null;
+            }
+            int values = start + (rows + 7) / 8;
+            switch (types[column - 1]) {
+                case TYPE_BOOLEAN:
+                    return data.get(values + i) != 0;
+                case TYPE_LONG:
+                    return data.getLong(values + 8 * i);
+                case TYPE_TIMESTAMP:
+                    return new Timestamp(data.getLong(values + 8 * i));
+                case TYPE_DOUBLE:
+                    return data.getDouble(values + 8 * i);
+                case TYPE_BINARY:
+                    ByteBuffer buffer = data.duplicate();
+                    buffer.position(binaryOffsets(chunk, column, data, values,
+                                                  rows)[i]);
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    return bytes;
+                default:
+                    String[] dictionary = dictionary(chunk, column, data,
+                                                     values);
+                    String value = dictionary[data.getInt(
+                            indexOffsets[chunk][column - 1] + 4 * i)];
+                    return (types[column - 1] == TYPE_DECIMAL)
+                           ? new BigDecimal(value) : value;
+            }
+        }
+
+        /**
+         * @return the row as a map of column name to value
+         */
+        public Map<String, Object> getRow(long row) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                map.put(names[i], getObject(row, i + 1));
+            }
+            return map;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private int chunkOf(long row) {
+            if (row < 0 || row >= rowCount) {
+                throw new IndexOutOfBoundsException("Row " + row);
+            }
+            int chunk = Arrays.binarySearch(chunkStarts, row);
+            return (chunk >= 0) ? chunk : -chunk - 2;
+        }
+
+        private ByteBuffer chunk(int chunk) {
+            if (chunks[chunk] == null) {
+                long end = (chunk + 1 < chunkOffsets.length)
+                           ? chunkOffsets[chunk + 1] : footer;
+                try {
+                    chunks[chunk] = map(chunkOffsets[chunk],
+                                        end - chunkOffsets[chunk]);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to read chunk " + chunk,
+                                               ex);
+                }
+                dictionaries[chunk] = new String[names.length][];
+                indexOffsets[chunk] = new int[names.length];
+                binaryOffsets[chunk] = new int[names.length][];
+            }
+            return chunks[chunk];
+        }
+
+        private String[] dictionary(int chunk, int column, ByteBuffer data,
+                                    int values) {
+            String[] dictionary = dictionaries[chunk][column - 1];
+            if (dictionary == null) {
+                ByteBuffer buffer = data.duplicate();
+                buffer.position(values);
+                dictionary = new String[buffer.getInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = readString(buffer);
+                }
+                dictionaries[chunk][column - 1] = dictionary;
+                indexOffsets[chunk][column - 1] = buffer.position();
+            }
+            return dictionary;
+        }
+
+        private int[] binaryOffsets(int chunk, int column, ByteBuffer data,
+                                    int values, int rows) {
+            int[] offsets = binaryOffsets[chunk][column - 1];
+            if (offsets == null) {
+                offsets = new int[rows];
+                int offset = values;
+                for (int i = 0; i < rows; i++) {
+                    offsets[i] = offset;
+                    offset += 4 + Math.max(0, data.getInt(offset));
+                }
+                binaryOffsets[chunk][column - 1] = offsets;
+            }
+            return offsets;
+        }
+    }
+
+    /**
+     * Borrows a connection to the database that is used for all the queries
+     * and updates made through the returned Session, until the Session is
+     * closed. Nothing is committed until {@link Session#commit()} is called.
+     * Closing the Session rolls back any uncommitted changes.
+     *
+     * @param connectionParams the connection parameters to connect to the
+     * database.
+     * @return a new Session
+     */
+    public static Session session(ConnectionParameters connectionParams) {
+        QueryOptions defaults = withDefaults(connectionParams, null);
+        return new Session(getConnection(connectionParams), defaults);
+    }
+
+    /**
+     * Runs queries and updates on a single database connection, in a single
+     * transaction.
+     */
+    public static final class Session implements AutoCloseable {
+
+        private PooledConnection pc;
+        private final QueryOptions defaults;
+
+        private Session(PooledConnection pc, QueryOptions defaults) {
+            this.pc = pc;
+            this.defaults = defaults;
+            try {
+                pc.connection.setReadOnly(false);
+            } catch (SQLException ex) {
+                release(pc, true);
+                throw new RuntimeException("Failed to start session", ex);
+            }
+        }
+
+        /**
+         * Run the SQL and return the first row
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @return a Map representing the fetched row or null if no row was
+         * found
+         * @see SimpleSQL#queryFirst(ConnectionParameters, String, List)
+         */
+        public Map<String, Object> queryFirst(String sql, List<Object> params) {
+            return queryFirst(sql, params, null);
+        }
+
+        /**
+         * Run the SQL and return the first row
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query. The read-only and
+         * transaction isolation settings are ignored in a session
+         * @return a Map representing the fetched row or null if no row was
+         * found
+         */
+        public Map<String, Object> queryFirst(String sql, List<Object> params,
+                                              QueryOptions options) {
+            RowCollector collector = new RowCollector(true);
+            execute(sql, params, firstRowOptions(merge(options, defaults)),
+                    collector, null);
+            return collector.first();
+        }
+
+        /**
+         * Run the SQL and return all the rows in a list
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @return a List of Maps representing the fetched rows
+         * @see SimpleSQL#queryAsList(ConnectionParameters, String, List)
+         */
+        public List<Map<String, Object>> queryAsList(String sql,
+                                                     List<Object> params) {
+            return queryAsList(sql, params, null);
+        }
+
+        /**
+         * Run the SQL and return all the rows in a list
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query. The read-only and
+         * transaction isolation settings are ignored in a session
+         * @return a List of Maps representing the fetched rows
+         */
+        public List<Map<String, Object>> queryAsList(String sql,
+                                                     List<Object> params,
+                                                     QueryOptions options) {
+            RowCollector collector = new RowCollector(false);
+            execute(sql, params, options, collector, null);
+            return collector.rows;
+        }
+
+        /**
+         * Run the SQL and return all the rows column by column
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query
+         * @return the columns of the fetched rows
+         * @see SimpleSQL#queryAsColumns(ConnectionParameters, String, List)
+         */
+        public ColumnarResult queryAsColumns(String sql, List<Object> params,
+                                             QueryOptions options) {
+            ColumnsHandler handler = new ColumnsHandler();
+            execute(sql, params, options, handler, false);
+            return handler.result();
+        }
+
+        /**
+         * Run the SQL and process each row
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param processor the processor for each row. The process should
+         * return true to continue fetching data
+         * @see SimpleSQL#query(ConnectionParameters, String, List,
+         * RowProcessor)
+         */
+        public void query(String sql, List<Object> params,
+                          RowProcessor processor) {
+            query(sql, params, null, processor);
+        }
+
+        /**
+         * Run the SQL and process each row
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query. The read-only and
+         * transaction isolation settings are ignored in a session
+         * @param processor the processor for each row. The process should
+         * return true to continue fetching data
+         */
+        public void query(String sql, List<Object> params,
+                          QueryOptions options, RowProcessor processor) {
+            execute(sql, params, options, processor, null);
+        }
+
+        /**
+         * Run the SQL and pass a cursor positioned on each row to the
+         * processor
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param processor the processor for each row. The process should
+         * return true to continue fetching data
+         * @see SimpleSQL#queryWithCursor(ConnectionParameters, String, List,
+         * RowCursorProcessor)
+         */
+        public void queryWithCursor(String sql, List<Object> params,
+                                    RowCursorProcessor processor) {
+            queryWithCursor(sql, params, null, processor);
+        }
+
+        /**
+         * Run the SQL and pass a cursor positioned on each row to the
+         * processor
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query. The read-only and
+         * transaction isolation settings are ignored in a session
+         * @param processor the processor for each row. The process should
+         * return true to continue fetching data
+         */
+        public void queryWithCursor(String sql, List<Object> params,
+                                    QueryOptions options,
+                                    RowCursorProcessor processor) {
+            execute(sql, params, options, new CursorHandler(processor), false);
+        }
+
+        /**
+         * Run the SQL and return all the rows as objects of the given class
+         *
+         * @param <T> the type of object to return
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query
+         * @param type the class of the objects to return
+         * @return a List of objects representing the fetched rows
+         * @see SimpleSQL#query(ConnectionParameters, String, List, Class)
+         */
+        public <T> List<T> query(String sql, List<Object> params,
+                                 QueryOptions options, Class<T> type) {
+            return queryAsList(sql, params, options,
+                               new BeanMapper<>(sql, type));
+        }
+
+        /**
+         * Run the SQL and return all the rows as the objects the mapper makes
+         * from them
+         *
+         * @param <T> the type of object to return
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query
+         * @param mapper makes an object from each row
+         * @return a List of the objects made by the mapper
+         */
+        public <T> List<T> queryAsList(String sql, List<Object> params,
+                                       QueryOptions options,
+                                       RowMapper<T> mapper) {
+            MapperCollector<T> collector = new MapperCollector<>(mapper, false);
+            queryWithCursor(sql, params, options, collector);
+            return collector.rows;
+        }
+
+        /**
+         * Run the SQL and return the object the mapper makes from the first
+         * row
+         *
+         * @param <T> the type of object to return
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query
+         * @param mapper makes an object from the row
+         * @return the object made by the mapper or null if no row was found
+         */
+        public <T> T queryFirst(String sql, List<Object> params,
+                                QueryOptions options, RowMapper<T> mapper) {
+            MapperCollector<T> collector = new MapperCollector<>(mapper, true);
+            queryWithCursor(sql, params, firstRowOptions(merge(options,
+                                                               defaults)),
+                            collector);
+            return collector.first();
+        }
+
+        /**
+         * Run the SQL and process the rows a batch at a time
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query, including the batch
+         * size. The read-only and transaction isolation settings are ignored
+         * in a session
+         * @param processor the processor for each batch of rows. The process
+         * should return true to continue fetching data
+         * @see SimpleSQL#queryInBatches(ConnectionParameters, String, List,
+         * QueryOptions, BatchRowProcessor)
+         */
+        public void queryInBatches(String sql, List<Object> params,
+                                   QueryOptions options,
+                                   BatchRowProcessor processor) {
+            QueryOptions merged = batchOptions(merge(options, defaults));
+            execute(sql, params, merged,
+                    new BatchHandler(processor, merged.getBatchSize()), false);
+        }
+
+        /**
+         * Run the SQL and return an Iterator over the rows. Close the iterator
+         * before running anything else in the session if it has not been read
+         * to the end.
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query. The read-only and
+         * transaction isolation settings are ignored in a session
+         * @return an iterator over the rows
+         * @see SimpleSQL#iterate(ConnectionParameters, String, List)
+         */
+        public RowIterator iterate(String sql, List<Object> params,
+                                   QueryOptions options) {
+            try {
+                return new RowIterator(pooledConnection(), false, -1, sql,
+                                       params, merge(options, defaults));
+            } catch (RuntimeException ex) {
+                throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+            }
+        }
+
+        /**
+         * Fetches the first row and calls the RowUpdater to manipulate it. The
+         * change is not committed until {@link #commit()} is called.
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param updater code that will manipulate the fetched row.
+         * @return the updated row
+         * @see SimpleSQL#fetchForUpdate(ConnectionParameters, String, List,
+         * RowUpdater)
+         */
+        public Map<String, Object> fetchForUpdate(String sql,
+                                                  List<Object> params,
+                                                  RowUpdater updater) {
+            return fetchForUpdate(sql, params, null, updater);
+        }
+
+        /**
+         * Fetches the first row and calls the RowUpdater to manipulate it. The
+         * change is not committed until {@link #commit()} is called.
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query. The read-only and
+         * transaction isolation settings are ignored in a session
+         * @param updater code that will manipulate the fetched row.
+         * @return the updated row
+         */
+        public Map<String, Object> fetchForUpdate(String sql,
+                                                  List<Object> params,
+                                                  QueryOptions options,
+                                                  RowUpdater updater) {
+            RowCollector collector = new RowCollector(true);
+            execute(sql, params, firstRowOptions(merge(options, defaults)),
+                    collector, updater);
+            return collector.first();
+        }
+
+        /**
+         * Fetches every row and calls the RowUpdater to manipulate each one.
+         * The changes are not committed until {@link #commit()} is called, so
+         * the commit interval is ignored.
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param options optional settings for the query
+         * @param updater code that will manipulate each fetched row.
+         * @return the number of rows that were changed
+         * @see SimpleSQL#updateAll(ConnectionParameters, String, List,
+         * QueryOptions, RowUpdater)
+         */
+        public long updateAll(String sql, List<Object> params,
+                              QueryOptions options, RowUpdater updater) {
+            RowHandler handler = new RowHandler(null, updater, false);
+            execute(sql, params, options, handler, true);
+            return handler.changed;
+        }
+
+        /**
+         * Fetches every row, calls the RowUpdater to manipulate each one and
+         * writes the changes with UPDATE statements that find each row by its
+         * key columns. The changes are not committed until {@link #commit()}
+         * is called.
+         *
+         * @param sql the SQL SELECT query to run to fetch the data.
+         * @param params an optional list of parameters to substitute for "?"
+         * in the SQL
+         * @param table the name of the table to update
+         * @param keyColumns the columns that identify a row of the table
+         * @param options optional settings, including the batch size
+         * @param updater code that will manipulate each fetched row.
+         * @return the number of rows that were changed
+         * @see SimpleSQL#updateByKey(ConnectionParameters, String, List,
+         * String, List, QueryOptions, RowUpdater)
+         */
+        public long updateByKey(String sql, List<Object> params, String table,
+                                List<String> keyColumns, QueryOptions options,
+                                RowUpdater updater) {
+            KeyUpdateHandler handler = new KeyUpdateHandler(
+                    table, keyColumns, updater, false, merge(options, defaults));
+            execute(sql, params, options, handler, false);
+            return handler.changed;
+        }
+
+        /**
+         * Runs the SQL once for each list of parameters, as a single batch.
+         * The changes are not committed until {@link #commit()} is called.
+         *
+         * @param sql the SQL to run
+         * @param listOfParameters a list of parameters for each execution
+         * @return the sum of the update counts reported by the driver, as
+         * for {@link SimpleSQL#batchUpdate(ConnectionParameters, String,
+         * Collection)}
+         * @see SimpleSQL#batchUpdate(ConnectionParameters, String, Collection)
+         */
+        public int batchUpdate(String sql,
+                               Collection<List<Object>> listOfParameters) {
+            try {
+                return executeBatch(pooledConnection(), sql, listOfParameters.
+                                    iterator(), null, false).legacyTotal();
+            } catch (SQLException ex) {
+                throw new RuntimeException("Update failed: " + sql, ex);
+            }
+        }
+
+        /**
+         * Runs the SQL once for each list of parameters, in chunks of the
+         * batch size. The commit interval is ignored: the changes are not
+         * committed until {@link #commit()} is called.
+         *
+         * @param sql the SQL to run
+         * @param listOfParameters the parameters for each execution, read as
+         * they are needed
+         * @param options optional settings, including the batch size
+         * @return the update counts of each chunk
+         * @see SimpleSQL#batchUpdate(ConnectionParameters, String, Iterator,
+         * QueryOptions)
+         */
+        public BatchResult batchUpdate(String sql,
+                                       Iterator<? extends List<Object>> listOfParameters,
+                                       QueryOptions options) {
+            try {
+                return executeBatch(pooledConnection(), sql, listOfParameters,
+                                    merge(options, defaults), false);
+            } catch (SQLException ex) {
+                throw new RuntimeException("Update failed: " + sql, ex);
+            }
+        }
+
+        /**
+         * @see #batchUpdate(String, Iterator, QueryOptions)
+         */
+        public BatchResult batchUpdate(String sql,
+                                       Iterable<? extends List<Object>> listOfParameters,
+                                       QueryOptions options) {
+            return batchUpdate(sql, listOfParameters.iterator(), options);
+        }
+
+        /**
+         * Commit all the changes made in this session
+         */
+        public void commit() {
+            try {
+                connection().commit();
+            } catch (SQLException ex) {
+                throw new RuntimeException("Commit failed", ex);
+            }
+        }
+
+        /**
+         * Roll back all the changes made in this session since the last commit
+         */
+        public void rollback() {
+            try {
+                connection().rollback();
+            } catch (SQLException ex) {
+                throw new RuntimeException("Rollback failed", ex);
+            }
+        }
+
+        /**
+         * Rolls back any uncommitted changes and releases the connection.
+         * Closing a closed session has no effect.
+         */
+        @Override
+        public void close() {
+            if (pc != null) {
+                release(pc, true);
+                pc = null;
+            }
+        }
+
+        private Connection connection() {
+            return pooledConnection().connection;
+        }
+
+        private PooledConnection pooledConnection() {
+            if (pc == null) {
+                throw new RuntimeException("Session has been closed");
+            }
+            return pc;
+        }
+
+        private void execute(String sql, List<Object> params,
+                             QueryOptions options,
+                             RowProcessor processor, RowUpdater updater) {
+            execute(sql, params, options,
+                    new RowHandler(processor, updater, false), updater != null);
+        }
+
+        private void execute(String sql, List<Object> params,
+                             QueryOptions options,
+                             ResultHandler handler, boolean updateable) {
+            PooledConnection c = pooledConnection();
+            try {
+                executeQuery(c, sql, params, merge(options, defaults), handler,
+                             updateable);
+            } catch (RuntimeException ex) {
+                throw new RuntimeException("Failed to execute SQL: " + sql, ex);
+            }
+        }
+    }
+
+    /**
+     * Collects the processed rows into a list
+     */
+    private static final class RowCollector implements RowProcessor {
+
+        final List<Map<String, Object>> rows = new ArrayList<>();
+        private final boolean firstOnly;
+
+        RowCollector(boolean firstOnly) {
+            this.firstOnly = firstOnly;
+        }
+
+        @Override
+        public boolean process(Map<String, Object> row) {
+            rows.add(row);
+            return !firstOnly;
+        }
+
+        Map<String, Object> first() {
+            return rows.isEmpty() ? null : rows.get(0);
+        }
+    }
+
+    /**
+     * Create a new, default set of connection pool settings. Adjust the
+     * settings with the "with" methods and pass them to
+     * {@link #enableConnectionPooling(PoolSettings)}.
+     *
+     * @return connection pool settings
+     */
+    public static PoolSettings poolSettings() {
+        return new PoolSettings();
+    }
+
+    /**
+     * Keep physical database connections open and reuse them between calls.
+     * Once enabled, every method of this class borrows a connection from a pool
+     * instead of connecting to the database on each call. A separate pool is
+     * kept for each distinct combination of driver class, connection string,
+     * user, password and connection properties.
+     *
+     * Calling this method again replaces the settings and closes any existing
+     * pools.
+     *
+     * @param settings the pool settings. If null the default settings are used
+     */
+    public static void enableConnectionPooling(PoolSettings settings) {
+        PoolSettings copy = new PoolSettings(
+                (settings != null) ? settings : new PoolSettings());
+
+        synchronized (POOLS) {
+            closePools();
+            poolSettings = copy;
+            long period = Math.max(1000L, Math.min(30000L,
+                                                   copy.getIdleTimeout() / 2));
+            poolMaintenance = new Timer("SimpleSQL connection pool", true);
+            poolMaintenance.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    maintainPools();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Stop pooling connections and close all idle pooled connections.
+     * Connections that are in use are closed when they are released.
+     */
+    public static void disableConnectionPooling() {
+        synchronized (POOLS) {
+            poolSettings = null;
+            closePools();
+        }
+    }
+
+    /**
+     * Keep prepared statements open on each connection so that SQL that is run
+     * again on the same connection does not have to be prepared again. This is
+     * most useful with connection pooling or a {@link Session}, where
+     * connections are reused. Statements are cached separately for read-only
+     * and updatable queries.
+     *
+     * @param size the maximum number of statements to keep open on each
+     * connection. The least recently used statement is closed when the limit
+     * is reached. Zero, the default, disables the cache.
+     */
+    public static void setStatementCacheSize(int size) {
+        statementCacheSize = Math.max(0, size);
+    }
+
+    public static int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the statement cache, across
+     * all connections, since the process started
+     */
+    public static StatementCacheStatistics statementCacheStatistics() {
+        return new StatementCacheStatistics(STATEMENT_CACHE_HITS.get(),
+                                            STATEMENT_CACHE_MISSES.get(),
+                                            STATEMENT_CACHE_EVICTIONS.get());
+    }
+
+    /**
+     * A snapshot of the statement cache counters
+     */
+    public static final class StatementCacheStatistics {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        private StatementCacheStatistics(long hits, long misses,
+                                         long evictions) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        /**
+         * @return the number of times a cached statement was reused
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of statements prepared while the cache was
+         * enabled
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of statements closed to make room for others
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", evictions="
+                   + evictions;
+        }
+    }
+
+    /**
+     * Keep the rows returned by queryFirst and queryAsList for queries with a
+     * time to live ({@link QueryOptions#withCacheTtl(long)}), so that running
+     * the same query with the same parameters against the same database again
+     * returns the same rows without going to the database. This suits lookups
+     * of reference data that changes rarely. The cached rows are read-only.
+     * Each caller is given its own copy of any byte arrays, dates and times,
+     * and collection parameters are copied into the cache, so changing them
+     * afterwards does not change what is cached.
+     * <p>
+     * Queries in a {@link Session} are not cached, as they may see changes
+     * the session has not committed.
+     *
+     * @param maxBytes the most memory, estimated from the values, the cached
+     * rows may take. The least recently used results are dropped to make
+     * room. Zero, the default, disables the cache and empties it.
+     */
+    public static void setResultCacheSize(long maxBytes) {
+        RESULT_CACHE.resize(Math.max(0, maxBytes));
+    }
+
+    public static long getResultCacheSize() {
+        return RESULT_CACHE.maxBytes;
+    }
+
+    /**
+     * Drop all the cached results, e.g. after the reference data has been
+     * changed
+     */
+    public static void clearResultCache() {
+        RESULT_CACHE.clear();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the result cache since the
+     * process started, and its current size
+     */
+    public static ResultCacheStatistics resultCacheStatistics() {
+        return RESULT_CACHE.statistics();
+    }
+
+    /**
+     * A snapshot of the result cache counters
+     */
+    public static final class ResultCacheStatistics {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+
+        private ResultCacheStatistics(long hits, long misses, long evictions,
+                                      int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the number of queries answered from the cache
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of queries with a time to live that were not in
+         * the cache, or whose results had expired
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of results dropped to make room for others
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return the number of results in the cache
+         */
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return the estimated size of the results in the cache
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", evictions="
+                   + evictions + ", entries=" + entries + ", bytes=" + bytes;
+        }
+    }
+
+    private static final ResultCache RESULT_CACHE = new ResultCache();
+
+    /**
+     * @return the key of the query's results in the result cache, or null if
+     * they are not to be cached
+     */
+    private static ResultKey resultKey(ConnectionParameters connectionParams,
+                                       String sql, List<Object> params,
+                                       QueryOptions options, boolean first) {
+        if (RESULT_CACHE.maxBytes <= 0 || options.getCacheTtl() <= 0) {
+            return null;
+        }
+        return new ResultKey(new ConnectionKey(connectionParams), sql, params,
+                             options, first);
+    }
+
+    /**
+     * Identifies the results of a query: the database, the SQL, the
+     * parameters and the options that change which rows are returned
+     */
+    private static final class ResultKey {
+
+        final ConnectionKey connection;
+        final String sql;
+        final List<Object> params;
+        final boolean first;
+        final Integer maxRows;
+        final boolean narrowNumbers;
+        final int hash;
+
+        ResultKey(ConnectionKey connection, String sql, List<Object> params,
+                  QueryOptions options, boolean first) {
+            this.connection = connection;
+            this.sql = sql;
+            this.params = new ArrayList<>((params != null) ? params.size()
+                                          : 0);
+            if (params != null) {
+                for (Object param : params) {
+                    this.params.add(copyValue(param));
+                }
+            }
+            this.first = first;
+            this.maxRows = options.getMaxRows();
+            this.narrowNumbers = options.isNarrowNumbers();
+
+            int h = connection.hashCode();
+            h = 31 * h + sql.hashCode();
+            h = 31 * h + this.params.hashCode();
+            h = 31 * h + (first ? 1 : 0);
+            h = 31 * h + (maxRows != null ? maxRows : -1);
+            hash = 31 * h + (narrowNumbers ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ResultKey)) {
+                return false;
+            }
+            ResultKey other = (ResultKey) obj;
+            return hash == other.hash && first == other.first
+                   && narrowNumbers == other.narrowNumbers
+                   && (maxRows == null ? other.maxRows == null
+                       : maxRows.equals(other.maxRows))
+                   && sql.equals(other.sql) && params.equals(other.params)
+                   && connection.equals(other.connection);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Cached rows, the time they expire, their estimated size, and whether
+     * they hold values that must be copied before they are returned
+     */
+    private static final class CachedResult {
+
+        final List<Map<String, Object>> rows;
+        final long expires;
+        final long bytes;
+        final boolean mutable;
+
+        CachedResult(List<Map<String, Object>> rows, long expires, long bytes,
+                     boolean mutable) {
+            this.rows = rows;
+            this.expires = expires;
+            this.bytes = bytes;
+            this.mutable = mutable;
+        }
+
+        /**
+         * @return the rows, with copies of any values that could be changed
+         * by the caller
+         */
+        List<Map<String, Object>> rows() {
+            return mutable ? readOnlyCopy(rows) : rows;
+        }
+    }
+
+    /**
+     * The results of queries, dropping the least recently used when the
+     * estimated size is over the limit
+     */
+    private static final class ResultCache {
+
+        volatile long maxBytes = 0;
+        private long bytes = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+        private final LinkedHashMap<ResultKey, CachedResult> results
+                = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * @return the cached rows, or null if there are none or they have
+         * expired
+         */
+        synchronized List<Map<String, Object>> get(ResultKey key) {
+            CachedResult result = results.get(key);
+            if (result != null && result.expires - System.nanoTime() <= 0) {
+                results.remove(key);
+                bytes -= result.bytes;
+                result = null;
+            }
+            if (result == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return result.rows();
+        }
+
+        /**
+         * Caches a copy of the rows
+         *
+         * @return the rows, made read-only
+         */
+        List<Map<String, Object>> put(ResultKey key,
+                                      List<Map<String, Object>> rows,
+                                      long ttl) {
+            long size = 128 + 2L * key.sql.length() + estimateSize(key.params);
+            boolean mutable = false;
+            for (Map<String, Object> row : rows) {
+                size += 48 + estimateSize(row.values());
+                for (Object value : row.values()) {
+                    mutable |= value instanceof byte[]
+                               || value instanceof java.util.Date;
+                }
+            }
+            if (!mutable) {
+                List<Map<String, Object>> readOnly = new ArrayList<>(rows.
+                        size());
+                for (Map<String, Object> row : rows) {
+                    readOnly.add(Collections.unmodifiableMap(row));
+                }
+                rows = Collections.unmodifiableList(readOnly);
+            }
+
+            long expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                    ttl);
+            CachedResult result = new CachedResult(mutable ? readOnlyCopy(rows)
+                                                   : rows, expires, size,
+                                                   mutable);
+            List<Map<String, Object>> readOnly = mutable ? readOnlyCopy(rows)
+                                                 : rows;
+            synchronized (this) {
+                if (size > maxBytes) {
+                    return readOnly;
+                }
+                CachedResult previous = results.put(key, result);
+                if (previous != null) {
+                    bytes -= previous.bytes;
+                }
+                bytes += size;
+                evict();
+            }
+            return readOnly;
+        }
+
+        private void evict() {
+            Iterator<CachedResult> i = results.values().iterator();
+            while (bytes > maxBytes && i.hasNext()) {
+                bytes -= i.next().bytes;
+                i.remove();
+                evictions++;
+            }
+        }
+
+        synchronized void resize(long maxBytes) {
+            this.maxBytes = maxBytes;
+            evict();
+        }
+
+        synchronized void clear() {
+            results.clear();
+            bytes = 0;
+        }
+
+        synchronized ResultCacheStatistics statistics() {
+            return new ResultCacheStatistics(hits, misses, evictions,
+                                             results.size(), bytes);
+        }
+    }
+
+    /**
+     * @return read-only copies of the rows, with copies of any values that
+     * could be changed
+     */
+    private static List<Map<String, Object>> readOnlyCopy(
+            List<Map<String, Object>> rows) {
+        List<Map<String, Object>> copy = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            Map<String, Object> values = new LinkedHashMap<>(row.size() * 4 / 3
+                                                             + 1);
+            for (Map.Entry<String, Object> e : row.entrySet()) {
+                values.put(e.getKey(), copyValue(e.getValue()));
+            }
+            copy.add(Collections.unmodifiableMap(values));
+        }
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @return a copy of the value if it is an array, date or collection that
+     * could be changed after it is cached, otherwise the value itself
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).clone();
+        }
+        if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>(((Collection<?>) value).
+                    size());
+            for (Object v : (Collection<?>) value) {
+                copy.add(copyValue(v));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * @return a rough estimate of the memory taken by the values
+     */
+    private static long estimateSize(Collection<?> values) {
+        long size = 16 + 8L * values.size();
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof String) {
+                size += 40 + 2L * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                size += 16 + ((byte[]) value).length;
+            } else if (value instanceof BigDecimal) {
+                size += 64;
+            } else if (value instanceof Number || value instanceof Boolean) {
+                size += 16;
+            } else if (value instanceof Collection) {
+                size += estimateSize((Collection<?>) value);
+            } else {
+                size += 32;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Settings for the connection pools used when connection pooling has been
+     * enabled
+     */
+    public static class PoolSettings {
+
+        private int minSize = 0;
+        private int maxSize = 10;
+        private long maxLifetime = 30 * 60 * 1000L;
+        private long idleTimeout = 10 * 60 * 1000L;
+        private long borrowTimeout = 30 * 1000L;
+        private boolean validateOnBorrow = true;
+        private int validationTimeout = 5;
+
+        public PoolSettings() {
+        }
+
+        public PoolSettings(PoolSettings other) {
+            minSize = other.minSize;
+            maxSize = other.maxSize;
+            maxLifetime = other.maxLifetime;
+            idleTimeout = other.idleTimeout;
+            borrowTimeout = other.borrowTimeout;
+            validateOnBorrow = other.validateOnBorrow;
+            validationTimeout = other.validationTimeout;
+        }
+
+        /**
+         * @param size the number of connections that are kept open even when
+         * they are idle. Default is 0
+         * @return these settings
+         */
+        public PoolSettings withMinSize(int size) {
+            minSize = Math.max(0, size);
+            return this;
+        }
+
+        /**
+         * @param size the maximum number of open connections for each pool.
+         * Default is 10
+         * @return these settings
+         */
+        public PoolSettings withMaxSize(int size) {
+            maxSize = Math.max(1, size);
+            return this;
+        }
+
+        /**
+         * @param millis the time after which a connection is closed, however
+         * busy it has been. Zero or less for no limit. Default is 30 minutes
+         * @return these settings
+         */
+        public PoolSettings withMaxLifetime(long millis) {
+            maxLifetime = millis;
+            return this;
+        }
+
+        /**
+         * @param millis the time after which an unused connection is closed
+         * (unless it is needed to keep the minimum size). Zero or less for no
+         * limit. Default is 10 minutes
+         * @return these settings
+         */
+        public PoolSettings withIdleTimeout(long millis) {
+            idleTimeout = millis;
+            return this;
+        }
+
+        /**
+         * @param millis the time to wait for a connection when all the
+         * connections are in use. Default is 30 seconds
+         * @return these settings
+         */
+        public PoolSettings withBorrowTimeout(long millis) {
+            borrowTimeout = Math.max(0, millis);
+            return this;
+        }
+
+        /**
+         * @param validate true to check that a connection is still usable,
+         * with {@link Connection#isValid(int)}, before it is handed out. Default
+         * is true
+         * @return these settings
+         */
+        public PoolSettings withValidateOnBorrow(boolean validate) {
+            validateOnBorrow = validate;
+            return this;
+        }
+
+        /**
+         * @param seconds the maximum time to wait when validating a connection.
+         * Default is 5 seconds
+         * @return these settings
+         */
+        public PoolSettings withValidationTimeout(int seconds) {
+            validationTimeout = Math.max(0, seconds);
+            return this;
+        }
+
+        public int getMinSize() {
+            return Math.min(minSize, maxSize);
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public long getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public long getBorrowTimeout() {
+            return borrowTimeout;
+        }
+
+        public boolean isValidateOnBorrow() {
+            return validateOnBorrow;
+        }
+
+        public int getValidationTimeout() {
+            return validationTimeout;
+        }
+    }
+
+    private static final Map<ConnectionKey, ConnectionPool> POOLS
+            = new HashMap<>();
+    private static volatile PoolSettings poolSettings = null;
+    private static volatile int statementCacheSize = 0;
+    private static final AtomicLong STATEMENT_CACHE_HITS = new AtomicLong();
+    private static final AtomicLong STATEMENT_CACHE_MISSES = new AtomicLong();
+    private static final AtomicLong STATEMENT_CACHE_EVICTIONS = new AtomicLong();
+    private static Timer poolMaintenance = null;
+
+    private static PooledConnection getConnection(ConnectionParameters params) {
+
+        PoolSettings settings = poolSettings;
+        if (settings == null) {
+            return new PooledConnection(null, openConnection(
+                                        params.getDriverClass(),
+                                        params.getConnectionString(),
+                                        params.getUser(),
+                                        params.getPassword(),
+                                        params.getProperties()));
+        }
+
+        ConnectionKey key = new ConnectionKey(params);
+        ConnectionPool pool;
+        synchronized (POOLS) {
+            pool = POOLS.get(key);
+            if (pool == null && poolSettings != null) {
+                pool = new ConnectionPool(key, poolSettings);
+                POOLS.put(key, pool);
+            }
+        }
+        if (pool == null) { // pooling was disabled in the meantime
+            return new PooledConnection(null, key.open());
+        }
+        return pool.borrow();
+    }
+
+    private static void release(PooledConnection pc, boolean rollbackRequired) {
+        if (pc == null) {
+            return;
+        }
+        if (pc.pool == null) {
+            close(pc.connection, rollbackRequired);
+            return;
+        }
+
+        boolean broken = false;
+        if (rollbackRequired) {
+            try {
+                pc.connection.rollback();
+            } catch (SQLException ex) {
+                broken = true;
+            }
+        }
+        pc.pool.release(pc, broken);
+    }
+
+    private static void closePools() {
+        synchronized (POOLS) {
+            if (poolMaintenance != null) {
+                poolMaintenance.cancel();
+                poolMaintenance = null;
+            }
+            for (ConnectionPool pool : POOLS.values()) {
+                pool.close();
+            }
+            POOLS.clear();
+        }
+    }
+
+    private static void maintainPools() {
+        List<ConnectionPool> pools;
+        synchronized (POOLS) {
+            pools = new ArrayList<>(POOLS.values());
+        }
+        for (ConnectionPool pool : pools) {
+            try {
+                pool.maintain();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(SimpleSQL.class.getName()).
+                        log(Level.WARNING, "Connection pool maintenance failed",
+                            ex);
+            }
+        }
+    }
+
+    private static Connection openConnection(String className,
+                                             String connection, String user,
+                                             String password,
+                                             Properties properties) {
 
         if (isEmpty(className)) {
             throw new RuntimeException("No JDBC Driver Class name given");
@@ -483,7 +7319,10 @@ public class SimpleSQL {
         try {
             Class.forName(className);
 
-            Properties props = params.getProperties();
+            Properties props = new Properties();
+            if (properties != null) {
+                props.putAll(properties);
+            }
             if (!anyEmpty(user, password)) {
                 props.setProperty("user", user);
                 props.setProperty("password", password);
@@ -509,28 +7348,756 @@ public class SimpleSQL {
         }
     }
 
-    private static PreparedStatement prepareStatement(Connection c, String sql,
+    /**
+     * A physical connection to the database. Connections that belong to a
+     * pool are returned to it on release, all others are closed.
+     *
+     * Prepared statements are kept open, in least recently used order, when
+     * the statement cache is enabled. A cached statement is removed from the
+     * cache while it is in use so that nested queries with the same SQL get
+     * their own statement.
+     */
+    private static final class PooledConnection {
+
+        final ConnectionPool pool;
+        final Connection connection;
+        final long created = System.currentTimeMillis();
+        long lastUsed = created;
+        private Map<StatementKey, PreparedStatement> statements = null;
+        private final Map<StatementKey, ParameterBinder> binders
+                = new HashMap<>();
+
+        /**
+         * The read-only flag and transaction isolation the connection had
+         * when it was opened, or null if they could not be read
+         */
+        private final Boolean initialReadOnly;
+        private final Integer initialIsolation;
+
+        PooledConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+            Boolean readOnly = null;
+            Integer isolation = null;
+            if (pool != null) {
+                try {
+                    readOnly = connection.isReadOnly();
+                    isolation = connection.getTransactionIsolation();
+                } catch (SQLException ex) {
+                    Logger.getLogger(SimpleSQL.class.getName()).
+                            log(Level.FINE, "Cannot read connection state", ex);
+                }
+            }
+            initialReadOnly = readOnly;
+            initialIsolation = isolation;
+        }
+
+        /**
+         * Puts back the read-only flag and transaction isolation the
+         * connection had when it was opened, so the next user of a pooled
+         * connection is not affected by the queries of the last one.
+         */
+        void reset() throws SQLException {
+            if (initialReadOnly != null
+                && connection.isReadOnly() != initialReadOnly) {
+                connection.setReadOnly(initialReadOnly);
+            }
+            if (initialIsolation != null
+                && connection.getTransactionIsolation() != initialIsolation) {
+                connection.setTransactionIsolation(initialIsolation);
+            }
+        }
+
+        /**
+         * Prepares the statement, or takes it from the cache, and applies the
+         * options to it. Settings that a cached statement was given by earlier
+         * options, but which are not in these options, are set back to the
+         * JDBC defaults.
+         */
+        PreparedStatement prepare(StatementKey key, QueryOptions options)
+                throws SQLException {
+            PreparedStatement ps = (statements != null) ? statements.
+                    remove(key) : null;
+            if (ps != null) {
+                try {
+                    ps.clearParameters();
+                    applyOptions(ps, options, true);
+                    STATEMENT_CACHE_HITS.incrementAndGet();
+                    return ps;
+                } catch (SQLException ex) {
+                    close((Statement) ps);
+                }
+            }
+            if (statementCacheSize > 0) {
+                STATEMENT_CACHE_MISSES.incrementAndGet();
+            }
+            if (key.resultSetHoldability != 0 && connection.getMetaData().
+                    supportsResultSetHoldability(key.resultSetHoldability)) {
+                ps = connection.prepareStatement(key.sql, key.resultSetType,
+                                                 key.resultSetConcurrency,
+                                                 key.resultSetHoldability);
+            } else {
+                ps = connection.prepareStatement(key.sql, key.resultSetType,
+                                                 key.resultSetConcurrency);
+            }
+            try {
+                applyOptions(ps, options, false);
+                return ps;
+            } catch (SQLException ex) {
+                close((Statement) ps);
+                throw ex;
+            }
+        }
+
+        private static void applyOptions(PreparedStatement ps,
+                                         QueryOptions options, boolean reset)
+                throws SQLException {
+            Integer fetchSize = (options != null) ? options.getFetchSize()
+                                : null;
+            Integer maxRows = (options != null) ? options.getMaxRows() : null;
+            Integer timeout = (options != null) ? options.getQueryTimeout()
+                              : null;
+
+            if (fetchSize != null || (reset && ps.getFetchSize() != 0)) {
+                ps.setFetchSize((fetchSize != null) ? fetchSize : 0);
+            }
+            if (maxRows != null || (reset && ps.getMaxRows() != 0)) {
+                ps.setMaxRows((maxRows != null) ? maxRows : 0);
+            }
+            if (timeout != null || (reset && ps.getQueryTimeout() != 0)) {
+                ps.setQueryTimeout((timeout != null) ? timeout : 0);
+            }
+        }
+
+        /**
+         * @return the binder for the statement's parameters, which is kept
+         * for as long as the statement is in the cache
+         */
+        ParameterBinder binder(StatementKey key) {
+            ParameterBinder binder = binders.get(key);
+            if (binder == null) {
+                binder = new ParameterBinder();
+                binders.put(key, binder);
+            }
+            return binder;
+        }
+
+        void release(StatementKey key, PreparedStatement ps, boolean reusable) {
+            if (ps == null) {
+                return;
+            }
+            if (!reusable || statementCacheSize <= 0) {
+                binders.remove(key);
+                close((Statement) ps);
+                return;
+            }
+            if (statements == null) {
+                statements = new LinkedHashMap<StatementKey, PreparedStatement>(
+                        16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<StatementKey, PreparedStatement> eldest) {
+                        if (size() > statementCacheSize) {
+                            STATEMENT_CACHE_EVICTIONS.incrementAndGet();
+                            binders.remove(eldest.getKey());
+                            close((Statement) eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+            }
+            PreparedStatement previous = statements.put(key, ps);
+            if (previous != null && previous != ps) {
+                close((Statement) previous);
+            }
+        }
+    }
+
+    /**
+     * Identifies a prepared statement in the statement cache
+     */
+    private static final class StatementKey {
+
+        final String sql;
+        final int resultSetType;
+        final int resultSetConcurrency;
+        final int resultSetHoldability;
+
+        StatementKey(String sql, int resultSetType, int resultSetConcurrency) {
+            this(sql, resultSetType, resultSetConcurrency, 0);
+        }
+
+        /**
+         * @param resultSetHoldability the holdability, or 0 for the default
+         */
+        StatementKey(String sql, int resultSetType, int resultSetConcurrency,
+                     int resultSetHoldability) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey other = (StatementKey) obj;
+            return resultSetType == other.resultSetType
+                   && resultSetConcurrency == other.resultSetConcurrency
+                   && resultSetHoldability == other.resultSetHoldability
+                   && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = sql.hashCode();
+            hash = 31 * hash + resultSetType;
+            hash = 31 * hash + resultSetConcurrency;
+            hash = 31 * hash + resultSetHoldability;
+            return hash;
+        }
+    }
+
+    /**
+     * The values of a ConnectionParameters object, used to find the pool for
+     * those parameters and to open new connections for it.
+     */
+    private static final class ConnectionKey {
+
+        final String driverClass;
+        final String connectionString;
+        final String user;
+        final String password;
+        final Properties properties;
+        final Map<String, String> propertyValues = new TreeMap<>();
+
+        ConnectionKey(ConnectionParameters params) {
+            driverClass = params.getDriverClass();
+            connectionString = params.getConnectionString();
+            user = params.getUser();
+            password = params.getPassword();
+            properties = params.getProperties();
+            if (properties != null) {
+                for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                    propertyValues.put(String.valueOf(entry.getKey()),
+                                       String.valueOf(entry.getValue()));
+                }
+            }
+        }
+
+        Connection open() {
+            return openConnection(driverClass, connectionString, user,
+                                  password, properties);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ConnectionKey)) {
+                return false;
+            }
+            ConnectionKey other = (ConnectionKey) obj;
+            return equal(driverClass, other.driverClass)
+                   && equal(connectionString, other.connectionString)
+                   && equal(user, other.user)
+                   && equal(password, other.password)
+                   && propertyValues.equals(other.propertyValues);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + hash(driverClass);
+            hash = 31 * hash + hash(connectionString);
+            hash = 31 * hash + hash(user);
+            hash = 31 * hash + propertyValues.hashCode();
+            return hash;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+
+        private static int hash(Object obj) {
+            return (obj == null) ? 0 : obj.hashCode();
+        }
+    }
+
+    /**
+     * The open connections for one set of connection parameters. Idle
+     * connections are handed out most recently used first so that the
+     * least used ones time out and are closed.
+     */
+    private static final class ConnectionPool {
+
+        private final ConnectionKey key;
+        private final PoolSettings settings;
+        private final Deque<PooledConnection> idle = new ArrayDeque<>();
+        private int total = 0;
+        private boolean closed = false;
+
+        ConnectionPool(ConnectionKey key, PoolSettings settings) {
+            this.key = key;
+            this.settings = settings;
+        }
+
+        PooledConnection borrow() {
+            long deadline = System.currentTimeMillis() + settings.
+                    getBorrowTimeout();
+
+            while (true) {
+                PooledConnection pc;
+                synchronized (this) {
+                    while (true) {
+                        if (closed) {
+                            throw new RuntimeException(
+                                    "Connection pool has been closed");
+                        }
+                        pc = idle.pollFirst();
+                        if (pc != null || total < settings.getMaxSize()) {
+                            break;
+                        }
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new RuntimeException(
+                                    "Timed out waiting for a connection to "
+                                    + key.connectionString);
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new RuntimeException(
+                                    "Interrupted waiting for a connection to "
+                                    + key.connectionString, ex);
+                        }
+                    }
+                    if (pc == null) {
+                        total++;
+                    }
+                }
+
+                if (pc == null) {
+                    return open();
+                }
+                if (expired(pc, System.currentTimeMillis()) || !valid(pc)) {
+                    discard(pc);
+                    continue;
+                }
+                return pc;
+            }
+        }
+
+        void release(PooledConnection pc, boolean broken) {
+            if (!broken) {
+                try {
+                    pc.reset();
+                } catch (SQLException ex) {
+                    broken = true;
+                }
+            }
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (!closed && !broken && !expired(pc, now)) {
+                    pc.lastUsed = now;
+                    idle.addFirst(pc);
+                    notifyAll();
+                    return;
+                }
+            }
+            discard(pc);
+        }
+
+        void maintain() {
+            long now = System.currentTimeMillis();
+            List<PooledConnection> evicted = new ArrayList<>();
+            int missing;
+            synchronized (this) {
+                Iterator<PooledConnection> it = idle.descendingIterator();
+                while (it.hasNext()) {
+                    PooledConnection pc = it.next();
+                    boolean idleTooLong = settings.getIdleTimeout() > 0
+                                          && now - pc.lastUsed > settings.
+                            getIdleTimeout()
+                                          && total - evicted.size() > settings.
+                            getMinSize();
+                    if (idleTooLong || expired(pc, now)) {
+                        it.remove();
+                        evicted.add(pc);
+                    }
+                }
+                missing = closed ? 0 : settings.getMinSize() - (total - evicted.
+                                                                 size());
+            }
+            for (PooledConnection pc : evicted) {
+                discard(pc);
+            }
+            for (int i = 0; i < missing; i++) {
+                synchronized (this) {
+                    if (closed || total >= settings.getMaxSize()) {
+                        return;
+                    }
+                    total++;
+                }
+                release(open(), false);
+            }
+        }
+
+        void close() {
+            List<PooledConnection> connections;
+            synchronized (this) {
+                closed = true;
+                connections = new ArrayList<>(idle);
+                idle.clear();
+                notifyAll();
+            }
+            for (PooledConnection pc : connections) {
+                discard(pc);
+            }
+        }
+
+        private PooledConnection open() {
+            try {
+                return new PooledConnection(this, key.open());
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    total--;
+                    notifyAll();
+                }
+                throw ex;
+            }
+        }
+
+        private void discard(PooledConnection pc) {
+            synchronized (this) {
+                total--;
+                notifyAll();
+            }
+            SimpleSQL.close(pc.connection);
+        }
+
+        private boolean expired(PooledConnection pc, long now) {
+            return settings.getMaxLifetime() > 0
+                   && now - pc.created > settings.getMaxLifetime();
+        }
+
+        private boolean valid(PooledConnection pc) {
+            if (!settings.isValidateOnBorrow()) {
+                return true;
+            }
+            try {
+                return pc.connection.isValid(settings.getValidationTimeout());
+            } catch (SQLException ex) {
+                return false;
+            }
+        }
+    }
+
+    private static PreparedStatement prepareStatement(PooledConnection pc,
+                                                      StatementKey key,
                                                       List<Object> params,
-                                                      boolean forUpdate) {
+                                                      QueryOptions options) {
         PreparedStatement ps = null;
         try {
-            if (!forUpdate) {
-                ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
-                                        ResultSet.CONCUR_READ_ONLY);
-            } else {
-                ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
-                                        ResultSet.CONCUR_UPDATABLE);
+            ps = pc.prepare(key, options);
+            pc.binder(key).bind(ps, params);
+            return ps;
+        } catch (Exception ex) {
+            pc.release(key, ps, false);
+            throw new RuntimeException("prepareStatement failed", ex);
+        }
+    }
+
+    /**
+     * The queries to run for a query with collection parameters: the SQL with
+     * a list of placeholders for each collection, and the parameters with the
+     * collections spread out. There is more than one query only when a
+     * collection is longer than the IN-list limit.
+     */
+    static final class InListExpansion {
+
+        final List<String> sqls = new ArrayList<>();
+        final List<List<Object>> params = new ArrayList<>();
+    }
+
+    /**
+     * Expands each collection parameter into a list of placeholders, e.g.
+     * <code>in (?)</code> into <code>in (?, ?, ?, ?)</code>. The number of
+     * placeholders is rounded up to a power of two, up to the limit, and the
+     * extra ones are given the last value of the collection, or null if it is
+     * empty, so the number of different SQL statements stays small. A
+     * collection longer than the limit is split into chunks, one query each.
+     *
+     * @return the expanded queries, or null if there are no collections
+     */
+    static InListExpansion expandInLists(String sql,
+                                         List<Object> params, int limit) {
+        if (params == null) {
+            return null;
+        }
+        int split = -1;
+        boolean found = false;
+        for (int i = 0; i < params.size(); i++) {
+            Object param = params.get(i);
+            if (param instanceof Collection) {
+                found = true;
+                if (((Collection<?>) param).size() > limit) {
+                    if (split >= 0) {
+                        throw new RuntimeException(
+                                "Only one list of parameters can be longer than "
+                                + limit + ": " + sql);
+                    }
+                    split = i;
+                }
+            }
+        }
+        if (!found) {
+            return null;
+        }
+
+        ParsedSql parsed = parsePlaceholders(sql);
+        if (parsed.names.length != params.size()) {
+            throw new RuntimeException("The SQL has " + parsed.names.length
+                                       + " placeholders but "
+                                       + params.size()
+                                       + " parameters were given: " + sql);
+        }
+
+        InListExpansion expansion = new InListExpansion();
+        List<Object> values = (split >= 0)
+                              ? new ArrayList<>((Collection<?>) params.
+                                      get(split)) : null;
+        int chunks = (split >= 0) ? (values.size() + limit - 1) / limit : 1;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            String[] placeholders = new String[params.size()];
+            List<Object> chunkParams = new ArrayList<>();
+            for (int i = 0; i < params.size(); i++) {
+                Object param = params.get(i);
+                if (!(param instanceof Collection)) {
+                    placeholders[i] = "?";
+                    chunkParams.add(param);
+                    continue;
+                }
+                Collection<?> list = (i == split)
+                                     ? values.subList(chunk * limit, Math.min(
+                                                      values.size(),
+                                                      (chunk + 1) * limit))
+                                     : (Collection<?>) param;
+                int bucket = inListBucket(list.size(), limit);
+                StringBuilder sb = new StringBuilder(bucket * 3);
+                Object last = null;
+                for (Object value : list) {
+                    sb.append(sb.length() == 0 ? "?" : ", ?");
+                    chunkParams.add(value);
+                    last = value;
+                }
+                for (int n = list.size(); n < bucket; n++) {
+                    sb.append(sb.length() == 0 ? "?" : ", ?");
+                    chunkParams.add(last);
+                }
+                placeholders[i] = sb.toString();
             }
+            expansion.sqls.add(parsed.join(placeholders));
+            expansion.params.add(chunkParams);
+        }
+        return expansion;
+    }
+
+    /**
+     * @return the number of placeholders for a list of the given size: the
+     * next power of two, or the limit
+     */
+    static int inListBucket(int size, int limit) {
+        if (size <= 1) {
+            return 1;
+        }
+        return Math.min(Integer.highestOneBit(size - 1) << 1, limit);
+    }
+
+    private static final int BIND_OBJECT = 0;
+    private static final int BIND_STRING = 1;
+    private static final int BIND_LONG = 2;
+    private static final int BIND_INT = 3;
+    private static final int BIND_DOUBLE = 4;
+    private static final int BIND_DECIMAL = 5;
+    private static final int BIND_BOOLEAN = 6;
+    private static final int BIND_TIMESTAMP = 7;
+    private static final int BIND_DATE = 8;
+    private static final int BIND_BYTES = 9;
+
+    /**
+     * @return how to bind a value of the given class
+     */
+    private static int bindKind(Class<?> type) {
+        if (type == String.class) {
+            return BIND_STRING;
+        } else if (type == Long.class) {
+            return BIND_LONG;
+        } else if (type == Integer.class || type == Short.class
+                   || type == Byte.class) {
+            return BIND_INT;
+        } else if (type == Double.class || type == Float.class) {
+            return BIND_DOUBLE;
+        } else if (type == BigDecimal.class) {
+            return BIND_DECIMAL;
+        } else if (type == Boolean.class) {
+            return BIND_BOOLEAN;
+        } else if (type == java.sql.Date.class) {
+            return BIND_DATE;
+        } else if (type == Timestamp.class || type == java.util.Date.class) {
+            return BIND_TIMESTAMP;
+        } else if (type == byte[].class) {
+            return BIND_BYTES;
+        }
+        return BIND_OBJECT;
+    }
+
+    /**
+     * @return the SQL type for nulls bound where a value of the kind was
+     */
+    private static int bindSqlType(int kind) {
+        switch (kind) {
+            case BIND_STRING:
+                return Types.VARCHAR;
+            case BIND_LONG:
+                return Types.BIGINT;
+            case BIND_INT:
+                return Types.INTEGER;
+            case BIND_DOUBLE:
+                return Types.DOUBLE;
+            case BIND_DECIMAL:
+                return Types.DECIMAL;
+            case BIND_BOOLEAN:
+                // BIT, rather than BOOLEAN, is understood by older drivers
+                return Types.BIT;
+            case BIND_TIMESTAMP:
+                return Types.TIMESTAMP;
+            case BIND_DATE:
+                return Types.DATE;
+            case BIND_BYTES:
+                return Types.VARBINARY;
+            default:
+                return Types.NULL;
+        }
+    }
+
+    /**
+     * How to bind the parameters of a statement. The setter for each
+     * parameter is chosen from the class of the first value that is not null,
+     * and used for every later value of that class, so the driver does not
+     * have to work out the type of each one as it does for setObject. Nulls
+     * are bound with setNull and the SQL type of the values before them,
+     * or of a {@link TypedParameter}; a null that comes before any value is
+     * bound with setObject, as the type is not known.
+     */
+    private static final class ParameterBinder {
+
+        private Class<?>[] classes = new Class<?>[0];
+        private int[] kinds = new int[0];
+        private int[] sqlTypes = new int[0];
+
+        void bind(PreparedStatement ps, List<Object> params)
+                throws SQLException {
             if (params != null) {
                 int i = 1;
-                for (Object obj : params) {
-                    ps.setObject(i++, obj);
+                for (Object param : params) {
+                    bind(ps, i++, param);
                 }
             }
-            return ps;
-        } catch (Exception ex) {
-            close(ps);
-            throw new RuntimeException("prepareStatement failed", ex);
+        }
+
+        /**
+         * @param column the parameter position, starting at 1
+         */
+        void bind(PreparedStatement ps, int column, Object value)
+                throws SQLException {
+            int p = column - 1;
+            if (p >= kinds.length) {
+                int length = Math.max(column, kinds.length * 2);
+                classes = Arrays.copyOf(classes, length);
+                kinds = Arrays.copyOf(kinds, length);
+                int known = sqlTypes.length;
+                sqlTypes = Arrays.copyOf(sqlTypes, length);
+                Arrays.fill(sqlTypes, known, length, Types.NULL);
+            }
+
+            if (value instanceof TypedParameter) {
+                TypedParameter typed = (TypedParameter) value;
+                sqlTypes[p] = typed.getSqlType();
+                if (typed.getValue() == null) {
+                    ps.setNull(column, typed.getSqlType());
+                } else {
+                    ps.setObject(column, typed.getValue(), typed.getSqlType());
+                }
+                return;
+            }
+            if (value == null) {
+                if (sqlTypes[p] != Types.NULL) {
+                    ps.setNull(column, sqlTypes[p]);
+                } else {
+                    ps.setObject(column, null);
+                }
+                return;
+            }
+
+            int kind;
+            if (value.getClass() == classes[p]) {
+                kind = kinds[p];
+            } else {
+                kind = bindKind(value.getClass());
+                if (classes[p] == null) {
+                    classes[p] = value.getClass();
+                    kinds[p] = kind;
+                    if (sqlTypes[p] == Types.NULL) {
+                        sqlTypes[p] = bindSqlType(kind);
+                    }
+                }
+            }
+
+            switch (kind) {
+                case BIND_STRING:
+                    ps.setString(column, (String) value);
+                    break;
+                case BIND_LONG:
+                    ps.setLong(column, (Long) value);
+                    break;
+                case BIND_INT:
+                    ps.setInt(column, ((Number) value).intValue());
+                    break;
+                case BIND_DOUBLE:
+                    ps.setDouble(column, ((Number) value).doubleValue());
+                    break;
+                case BIND_DECIMAL:
+                    ps.setBigDecimal(column, (BigDecimal) value);
+                    break;
+                case BIND_BOOLEAN:
+                    ps.setBoolean(column, (Boolean) value);
+                    break;
+                case BIND_TIMESTAMP:
+                    ps.setTimestamp(column, (value instanceof Timestamp)
+                                            ? (Timestamp) value
+                                            : new Timestamp(
+                                                    ((java.util.Date) value).
+                                                            getTime()));
+                    break;
+                case BIND_DATE:
+                    ps.setDate(column, (java.sql.Date) value);
+                    break;
+                case BIND_BYTES:
+                    ps.setBytes(column, (byte[]) value);
+                    break;
+                default:
+                    ps.setObject(column, value);
+                    break;
+            }
         }
     }
 
@@ -0,0 +1,127 @@
+/*
+MIT License
+
+Copyright (c) 2019 Aberta Ltd.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package aberta.sql;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class InListTest {
+
+    @Test
+    public void buckets() {
+        assertEquals(1, SimpleSQL.inListBucket(0, 1000));
+        assertEquals(1, SimpleSQL.inListBucket(1, 1000));
+        assertEquals(2, SimpleSQL.inListBucket(2, 1000));
+        assertEquals(4, SimpleSQL.inListBucket(3, 1000));
+        assertEquals(4, SimpleSQL.inListBucket(4, 1000));
+        assertEquals(8, SimpleSQL.inListBucket(5, 1000));
+        assertEquals(512, SimpleSQL.inListBucket(512, 1000));
+        assertEquals(1000, SimpleSQL.inListBucket(513, 1000));
+        assertEquals(1000, SimpleSQL.inListBucket(1000, 1000));
+    }
+
+    @Test
+    public void noLists() {
+        assertNull(SimpleSQL.expandInLists("select * from T where A = ?",
+                                           Arrays.<Object>asList(1), 1000));
+        assertNull(SimpleSQL.expandInLists("select * from T", null, 1000));
+    }
+
+    @Test
+    public void padded() {
+        SimpleSQL.InListExpansion expansion = SimpleSQL.expandInLists(
+                "select * from T where A = ? and B in (?)",
+                Arrays.<Object>asList("a", Arrays.asList(1, 2, 3)), 1000);
+        assertEquals(Collections.singletonList(
+                "select * from T where A = ? and B in (?, ?, ?, ?)"),
+                     expansion.sqls);
+        assertEquals(Collections.singletonList(Arrays.<Object>asList(
+                "a", 1, 2, 3, 3)), expansion.params);
+    }
+
+    @Test
+    public void empty() {
+        SimpleSQL.InListExpansion expansion = SimpleSQL.expandInLists(
+                "select * from T where B in (?)",
+                Arrays.<Object>asList(Collections.emptyList()), 1000);
+        assertEquals(Collections.singletonList(
+                "select * from T where B in (?)"), expansion.sqls);
+        assertEquals(Collections.singletonList(Arrays.asList((Object) null)),
+                     expansion.params);
+    }
+
+    @Test
+    public void split() {
+        SimpleSQL.InListExpansion expansion = SimpleSQL.expandInLists(
+                "select * from T where B in (?) and C = ?",
+                Arrays.<Object>asList(Arrays.asList(1, 2, 3, 4, 5), "c"), 2);
+        assertEquals(Arrays.asList(
+                "select * from T where B in (?, ?) and C = ?",
+                "select * from T where B in (?, ?) and C = ?",
+                "select * from T where B in (?) and C = ?"), expansion.sqls);
+        assertEquals(Arrays.<List<Object>>asList(
+                Arrays.<Object>asList(1, 2, "c"),
+                Arrays.<Object>asList(3, 4, "c"),
+                Arrays.<Object>asList(5, "c")), expansion.params);
+    }
+
+    @Test
+    public void colonsLeftAlone() {
+        SimpleSQL.InListExpansion expansion = SimpleSQL.expandInLists(
+                "select :new.A from T where B in (?)",
+                Arrays.<Object>asList(Arrays.asList(1, 2)), 1000);
+        assertEquals(Collections.singletonList(
+                "select :new.A from T where B in (?, ?)"), expansion.sqls);
+    }
+
+    @Test
+    public void twoLongLists() {
+        try {
+            SimpleSQL.expandInLists("select * from T where B in (?) or C in (?)",
+                                    Arrays.<Object>asList(
+                                            Arrays.asList(1, 2, 3),
+                                            Arrays.asList(1, 2, 3)), 2);
+            fail();
+        } catch (RuntimeException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void wrongParameterCount() {
+        try {
+            SimpleSQL.expandInLists("select * from T where B in (?)",
+                                    Arrays.<Object>asList(
+                                            Arrays.asList(1, 2), "x"), 1000);
+            fail();
+        } catch (RuntimeException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+MIT License
+
+Copyright (c) 2019 Aberta Ltd.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package aberta.sql;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ParsedSqlTest {
+
+    @Test
+    public void namedParameters() {
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(
+                "select * from T where A = :a and B in (:b, :a)");
+        assertEquals("select * from T where A = ? and B in (?, ?)",
+                     parsed.getSql());
+        assertEquals(Arrays.asList("a", "b", "a"), parsed.
+                     getParameterNames());
+
+        Map<String, Object> values = new HashMap<>();
+        values.put("a", 1);
+        values.put("b", "x");
+        assertEquals(Arrays.<Object>asList(1, "x", 1), parsed.bind(values));
+    }
+
+    @Test
+    public void placeholders() {
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(
+                "select * from T where A = ? and B = ?");
+        assertEquals("select * from T where A = ? and B = ?", parsed.
+                     getSql());
+        assertEquals(Arrays.asList(null, null), parsed.getParameterNames());
+    }
+
+    @Test
+    public void quotesAndComments() {
+        String sql = "select ':a', \":b\", `:c`, 'it''s :d' -- :e\n"
+                     + "/* :f */ from T where A = :g";
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(sql);
+        assertEquals(Collections.singletonList("g"), parsed.
+                     getParameterNames());
+        assertEquals(sql.replace(":g", "?"), parsed.getSql());
+    }
+
+    @Test
+    public void casts() {
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(
+                "select A::text, :b::int, ?:: int from T");
+        assertEquals("select A::text, ?::int, ?:: int from T", parsed.
+                     getSql());
+        assertEquals(Arrays.asList("b", null), parsed.getParameterNames());
+    }
+
+    @Test
+    public void unterminated() {
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(
+                "select :a from T where B = ':b");
+        assertEquals(Collections.singletonList("a"), parsed.
+                     getParameterNames());
+    }
+
+    @Test
+    public void cached() {
+        String sql = "select * from T where A = :cached";
+        assertSame(SimpleSQL.namedSql(sql), SimpleSQL.namedSql(sql));
+    }
+
+    @Test
+    public void usedSqlStaysCached() {
+        String sql = "select * from T where A = :used";
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(sql);
+        for (int i = 0; i < 5000; i++) {
+            SimpleSQL.namedSql("select * from T where A = :a" + i);
+            assertSame(parsed, SimpleSQL.namedSql(sql));
+        }
+    }
+
+    @Test
+    public void missingValue() {
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(
+                "select * from T where A = :a");
+        try {
+            parsed.bind(Collections.<String, Object>emptyMap());
+            fail();
+        } catch (RuntimeException ex) {
+            assertEquals("No value for :a in SQL: select * from T where A = :a",
+                         ex.getMessage());
+        }
+    }
+
+    @Test
+    public void mixedParameters() {
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(
+                "select * from T where A = :a and B = ?");
+        try {
+            parsed.bind(Collections.<String, Object>singletonMap("a", 1));
+            fail();
+        } catch (RuntimeException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void noParameters() {
+        String sql = "select * from T";
+        SimpleSQL.ParsedSql parsed = SimpleSQL.namedSql(sql);
+        assertSame(sql, parsed.getSql());
+        assertEquals(Collections.<Object>emptyList(), parsed.bind(null));
+    }
+}